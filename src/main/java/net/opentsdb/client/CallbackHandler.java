@@ -17,6 +17,7 @@ package net.opentsdb.client;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.socket.DatagramPacket;
 import io.netty.handler.codec.http.HttpObject;
+import net.opentsdb.client.metrics.FlushStages;
 import net.opentsdb.client.tracing.TraceCodec;
 
 /**
@@ -58,4 +59,10 @@ public interface CallbackHandler {
 	 */
 	public TraceCodec traceCodec();
 	
+	/**
+	 * Returns the callback handler's pipeline stage latency histograms
+	 * @return the stage latency histograms
+	 */
+	public FlushStages flushStages();
+	
 }
@@ -67,6 +67,8 @@ public class ClientConfiguration {
 	protected final boolean disableEpoll;
 	/** Custom configuration elements */
 	protected final Map<String, Object> customElements;
+	/** The socket options */
+	protected SocketOptions socketOptions = new SocketOptions();
 	
 	
 	public static void main(String[] args) {
@@ -171,6 +173,15 @@ public class ClientConfiguration {
 		return address;
 	}
 	
+	public SocketOptions socketOptions() {
+		return socketOptions;
+	}
+	
+	public void socketOptions(final SocketOptions socketOptions) {
+		if(socketOptions==null) throw new IllegalArgumentException("The passed SocketOptions was null");
+		this.socketOptions = socketOptions;
+	}
+	
 	public <T> T custom(final String key, final Class<T> type, final T defaultValue) {
 		if(key==null || key.trim().isEmpty()) throw new IllegalArgumentException("The passed key was null or empty");
 		if(type==null) throw new IllegalArgumentException("The passed type was null");
@@ -213,6 +224,8 @@ public class ClientConfiguration {
 			gen.writeStringField("protocol", value.protocol.name());
 			gen.writeStringField("address", value.address.toString());
 			gen.writeBooleanField("disableepoll", value.disableEpoll);
+			gen.writeFieldName("socket");
+			value.socketOptions.toJson(gen);
 			gen.writeObjectField("custom", value.customElements);
 			gen.writeEndObject();			
 		}
@@ -244,6 +257,9 @@ public class ClientConfiguration {
 			if(node.has("disableepoll")) disableEpoll = node.get("disableepoll").booleanValue();
 			if(node.has("async")) disableEpoll = node.get("async").booleanValue();
 			final ClientConfiguration cc = new ClientConfiguration(async, msTime, directBuffers, pooledBuffers, traceBufferSize, encoding, protocol, gzip, address, disableEpoll);
+			if(node.has("socket")) {
+				cc.socketOptions = SocketOptions.fromJson(node.get("socket"));
+			}
 			if(node.has("custom")) {
 				cc.customElements.putAll(JSONOps.parseToObject(node.get("custom"), JSONOps.TR_STR_OBJ_HASH_MAP));
 				
@@ -258,7 +274,7 @@ public class ClientConfiguration {
 		builder.append("ClientConfiguration [msTime=").append(msTime).append(", directBuffers=").append(directBuffers)
 				.append(", pooledBuffers=").append(pooledBuffers).append(", traceBufferSize=").append(traceBufferSize)
 				.append(", encoding=").append(encoding).append(", protocol=").append(protocol).append(", gzip=")
-				.append(gzip).append(", address=").append(address).append(", disableEpoll=").append(disableEpoll).append("]");
+				.append(gzip).append(", address=").append(address).append(", disableEpoll=").append(disableEpoll).append(", socket=").append(socketOptions).append("]");
 		return builder.toString();
 	}
 
@@ -23,9 +23,7 @@ import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.epoll.EpollDatagramChannel;
 import io.netty.channel.epoll.EpollDomainSocketChannel;
-import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.epoll.EpollSocketChannel;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.channel.unix.DomainSocketAddress;
@@ -34,14 +32,18 @@ import io.netty.handler.codec.compression.ZlibWrapper;
 import io.netty.handler.codec.http.HttpClientCodec;
 import io.netty.handler.codec.http.HttpContentCompressor;
 import io.netty.handler.codec.http.HttpContentDecompressor;
-import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import io.netty.handler.codec.json.JsonObjectDecoder;
 import io.netty.handler.codec.string.StringDecoder;
+import net.opentsdb.client.metrics.FlushStages;
+import net.opentsdb.client.metrics.StageTimingHandler;
 import net.opentsdb.client.protocol.BaseClient;
 import net.opentsdb.client.protocol.ClientBuilder;
 import net.opentsdb.client.protocol.TCPClient;
 import net.opentsdb.client.protocol.UDPClient;
 import net.opentsdb.client.protocol.UnixClient;
 import net.opentsdb.client.tracing.TraceCodec;
+import net.opentsdb.client.util.EventLoopRegistry;
 
 /**
  * <p>Title: Protocol</p>
@@ -113,6 +115,8 @@ public enum Protocol implements ClientBuilder {
 	public abstract static class BaseClientBuilder implements ClientBuilder {
 		static final Charset UTF8 = Charset.forName("UTF8");
 		static final StringDecoder stringDecoder = new StringDecoder(UTF8);
+		/** The longest plain text error line accepted from a telnet put server */
+		static final int MAX_ERROR_LINE = 8192;
 		
 		
 		@Override
@@ -133,16 +137,23 @@ public enum Protocol implements ClientBuilder {
 					if(config.encoding()==TraceCodec.JSON) {
 						if(config.gzip) {
 							p.addLast("Compressor", new HttpContentCompressor());
+							p.addLast("CompressTimer", new StageTimingHandler(callbackHandler.flushStages(), FlushStages.Stage.COMPRESS));
 						}
 						p.addLast("HttpCodec", new HttpClientCodec());
 						p.addLast("Decompressor", new HttpContentDecompressor());
-						p.addLast("Aggregator", new HttpObjectAggregator(1048576));							
 					} else {
 						if(config.gzip) {
 							p.addLast("compressor", new JZlibEncoder(ZlibWrapper.GZIP, 9));
+							p.addLast("compresstimer", new StageTimingHandler(callbackHandler.flushStages(), FlushStages.Stage.COMPRESS));
 						} else {
 							p.addLast("passthrough", new ChannelDuplexHandler());
 						}
+						if(config.encoding()==TraceCodec.PUT) {
+							// telnet puts are only answered with plain text error lines
+							p.addLast("framer", new LineBasedFrameDecoder(MAX_ERROR_LINE));
+						} else {
+							p.addLast("framer", new JsonObjectDecoder());
+						}
 						p.addLast("stringdecoder", stringDecoder);
 					}
 					p.addLast("handler", callbackHandler.traceCodec().outboundHandler(callbackHandler));
@@ -150,13 +161,15 @@ public enum Protocol implements ClientBuilder {
 			};
 		}
 		
+		/**
+		 * {@inheritDoc}
+		 * <p>Acquires the JVM wide shared group for the configured transport. 
+		 * Callers must release it through {@link EventLoopRegistry#release(EventLoopGroup)}.</p>
+		 * @see net.opentsdb.client.protocol.ClientBuilder#eventLoopGroup(net.opentsdb.client.ClientConfiguration)
+		 */
 		@Override
 		public EventLoopGroup eventLoopGroup(final ClientConfiguration config) {
-			if(config.epoll()) {
-				return new EpollEventLoopGroup(1);
-			} else {
-				return new NioEventLoopGroup(1);
-			}			
+			return EventLoopRegistry.acquire(config);
 		}
 	}
 	
@@ -0,0 +1,232 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
+import net.opentsdb.client.buffer.BufferManager;
+
+/**
+ * <p>Title: SocketOptions</p>
+ * <p>Description: The typed <b><code>"socket"</code></b> section of the client configuration.
+ * Options that are not set are left at the netty/OS default. Options that do not apply to the
+ * client's protocol or transport are ignored.</p>
+ * <p>Example: <b><code>"socket" : { "tcpnodelay" : true, "sndbuf" : 262144, "highwatermark" : 1048576, "tcpcork" : false }</code></b></p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.SocketOptions</code></p>
+ */
+
+public class SocketOptions {
+	/** <b><code>tcpnodelay</code></b>: Disables Nagle so small batches are sent without waiting for outstanding ACKs (TCP only) */
+	protected Boolean tcpNoDelay = null;
+	/** <b><code>keepalive</code></b>: Enables TCP keep-alive probes on idle connections (TCP only) */
+	protected Boolean keepAlive = null;
+	/** <b><code>sndbuf</code></b>: The kernel send buffer size in bytes. Larger values absorb bigger flushes before the channel goes unwritable */
+	protected Integer sendBufferSize = null;
+	/** <b><code>rcvbuf</code></b>: The kernel receive buffer size in bytes. Mostly relevant for UDP response bursts */
+	protected Integer receiveBufferSize = null;
+	/** <b><code>lowwatermark</code></b>: The pending outbound bytes below which an unwritable channel becomes writable again */
+	protected Integer lowWaterMark = null;
+	/** <b><code>highwatermark</code></b>: The pending outbound bytes above which the channel reports itself unwritable */
+	protected Integer highWaterMark = null;
+	/** <b><code>connecttimeout</code></b>: The connect timeout in ms. (TCP and UNIX) */
+	protected Integer connectTimeout = null;
+	/** <b><code>allocator</code></b>: The channel's buffer allocator: <code>client</code> (the client's trace buffer allocator),
+	 * <code>shared</code> (the JVM wide {@link BufferManager}), <code>pooled</code>, <code>unpooled</code> or unset for the netty default */
+	protected String allocator = null;
+	/** <b><code>tcpcork</code></b>: Epoll only. Holds partial frames until the cork is removed so a request's header and body leave in full segments (TCP only) */
+	protected Boolean tcpCork = null;
+	/** <b><code>tcpquickack</code></b>: Epoll only. Disables delayed ACKs so responses to small requests are acknowledged immediately (TCP only) */
+	protected Boolean tcpQuickAck = null;
+	/** <b><code>epollmode</code></b>: Epoll only. <code>edge</code> or <code>level</code> triggered event notification */
+	protected EpollMode epollMode = null;
+	/** <b><code>udpsockets</code></b>: Epoll only. The number of datagram sockets bound to the same port with <code>SO_REUSEPORT</code>
+	 * that sent packets are spread across, 0 for one per event loop thread (UDP only) */
+	protected Integer udpSockets = null;
+
+	/**
+	 * Creates a new SocketOptions with all options unset
+	 */
+	public SocketOptions() {
+
+	}
+
+	/**
+	 * Creates a new SocketOptions from the passed JSON node
+	 * @param node The <code>"socket"</code> JSON node
+	 * @return the parsed socket options
+	 */
+	public static SocketOptions fromJson(final JsonNode node) {
+		final SocketOptions so = new SocketOptions();
+		if(node==null || !node.isObject()) return so;
+		if(node.has("tcpnodelay")) so.tcpNoDelay = node.get("tcpnodelay").booleanValue();
+		if(node.has("keepalive")) so.keepAlive = node.get("keepalive").booleanValue();
+		if(node.has("sndbuf")) so.sendBufferSize = node.get("sndbuf").intValue();
+		if(node.has("rcvbuf")) so.receiveBufferSize = node.get("rcvbuf").intValue();
+		if(node.has("lowwatermark")) so.lowWaterMark = node.get("lowwatermark").intValue();
+		if(node.has("highwatermark")) so.highWaterMark = node.get("highwatermark").intValue();
+		if(node.has("connecttimeout")) so.connectTimeout = node.get("connecttimeout").intValue();
+		if(node.has("allocator")) so.allocator = node.get("allocator").textValue().trim().toLowerCase();
+		if(node.has("tcpcork")) so.tcpCork = node.get("tcpcork").booleanValue();
+		if(node.has("tcpquickack")) so.tcpQuickAck = node.get("tcpquickack").booleanValue();
+		if(node.has("epollmode")) so.epollMode = EpollMode.valueOf(node.get("epollmode").textValue().trim().toUpperCase() + "_TRIGGERED");
+		if(node.has("udpsockets")) so.udpSockets = node.get("udpsockets").intValue();
+		return so;
+	}
+
+	/**
+	 * Writes the set options as a JSON object
+	 * @param gen The generator to write with
+	 * @throws IOException thrown on any write error
+	 */
+	public void toJson(final JsonGenerator gen) throws IOException {
+		gen.writeStartObject();
+		if(tcpNoDelay!=null) gen.writeBooleanField("tcpnodelay", tcpNoDelay);
+		if(keepAlive!=null) gen.writeBooleanField("keepalive", keepAlive);
+		if(sendBufferSize!=null) gen.writeNumberField("sndbuf", sendBufferSize);
+		if(receiveBufferSize!=null) gen.writeNumberField("rcvbuf", receiveBufferSize);
+		if(lowWaterMark!=null) gen.writeNumberField("lowwatermark", lowWaterMark);
+		if(highWaterMark!=null) gen.writeNumberField("highwatermark", highWaterMark);
+		if(connectTimeout!=null) gen.writeNumberField("connecttimeout", connectTimeout);
+		if(allocator!=null) gen.writeStringField("allocator", allocator);
+		if(tcpCork!=null) gen.writeBooleanField("tcpcork", tcpCork);
+		if(tcpQuickAck!=null) gen.writeBooleanField("tcpquickack", tcpQuickAck);
+		if(epollMode!=null) gen.writeStringField("epollmode", epollMode==EpollMode.EDGE_TRIGGERED ? "edge" : "level");
+		if(udpSockets!=null) gen.writeNumberField("udpsockets", udpSockets);
+		gen.writeEndObject();
+	}
+
+	/**
+	 * Applies the set options to the passed bootstrap
+	 * @param bootstrap The bootstrap to configure
+	 * @param config The client configuration
+	 * @param clientAllocator The client's trace buffer allocator
+	 * @return the configured bootstrap
+	 */
+	public Bootstrap apply(final Bootstrap bootstrap, final ClientConfiguration config, final ByteBufAllocator clientAllocator) {
+		final Protocol protocol = config.protocol();
+		final boolean epoll = config.epoll();
+		if(sendBufferSize!=null) bootstrap.option(ChannelOption.SO_SNDBUF, sendBufferSize);
+		if(receiveBufferSize!=null) bootstrap.option(ChannelOption.SO_RCVBUF, receiveBufferSize);
+		if(lowWaterMark!=null || highWaterMark!=null) {
+			final int high = highWaterMark!=null ? highWaterMark : Math.max(lowWaterMark, WriteBufferWaterMark.DEFAULT.high());
+			final int low = lowWaterMark!=null ? lowWaterMark : Math.min(high, WriteBufferWaterMark.DEFAULT.low());
+			bootstrap.option(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(low, high));
+		}
+		final ByteBufAllocator alloc = allocator(clientAllocator, config);
+		if(alloc!=null) bootstrap.option(ChannelOption.ALLOCATOR, alloc);
+		if(protocol!=Protocol.UDP && connectTimeout!=null) bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout);
+		if(protocol==Protocol.TCP) {
+			if(tcpNoDelay!=null) bootstrap.option(ChannelOption.TCP_NODELAY, tcpNoDelay);
+			if(keepAlive!=null) bootstrap.option(ChannelOption.SO_KEEPALIVE, keepAlive);
+		}
+		if(epoll) {
+			if(epollMode!=null) bootstrap.option(EpollChannelOption.EPOLL_MODE, epollMode);
+			if(protocol==Protocol.TCP) {
+				if(tcpCork!=null) bootstrap.option(EpollChannelOption.TCP_CORK, tcpCork);
+				if(tcpQuickAck!=null) bootstrap.option(EpollChannelOption.TCP_QUICKACK, tcpQuickAck);
+			}
+			if(protocol==Protocol.UDP && udpSockets!=null && udpSockets!=1) bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+		}
+		return bootstrap;
+	}
+
+	/**
+	 * Resolves the configured allocator
+	 * @param clientAllocator The client's trace buffer allocator
+	 * @param config The client configuration
+	 * @return the allocator or null if the netty default should be used
+	 */
+	protected ByteBufAllocator allocator(final ByteBufAllocator clientAllocator, final ClientConfiguration config) {
+		if(allocator==null) return null;
+		if("client".equals(allocator)) return clientAllocator;
+		if("shared".equals(allocator)) return BufferManager.getInstance();
+		if("pooled".equals(allocator)) return new PooledByteBufAllocator(config.directBuffers());
+		if("unpooled".equals(allocator)) return new UnpooledByteBufAllocator(config.directBuffers());
+		throw new IllegalArgumentException("Unrecognized socket allocator [" + allocator + "]");
+	}
+
+	public Boolean tcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	public Boolean keepAlive() {
+		return keepAlive;
+	}
+
+	public Integer sendBufferSize() {
+		return sendBufferSize;
+	}
+
+	public Integer receiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	public Integer lowWaterMark() {
+		return lowWaterMark;
+	}
+
+	public Integer highWaterMark() {
+		return highWaterMark;
+	}
+
+	public Integer connectTimeout() {
+		return connectTimeout;
+	}
+
+	public String allocator() {
+		return allocator;
+	}
+
+	public Boolean tcpCork() {
+		return tcpCork;
+	}
+
+	public Boolean tcpQuickAck() {
+		return tcpQuickAck;
+	}
+
+	public EpollMode epollMode() {
+		return epollMode;
+	}
+
+	public Integer udpSockets() {
+		return udpSockets;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("SocketOptions [tcpNoDelay=").append(tcpNoDelay).append(", keepAlive=").append(keepAlive)
+				.append(", sendBufferSize=").append(sendBufferSize).append(", receiveBufferSize=").append(receiveBufferSize)
+				.append(", lowWaterMark=").append(lowWaterMark).append(", highWaterMark=").append(highWaterMark)
+				.append(", connectTimeout=").append(connectTimeout).append(", allocator=").append(allocator)
+				.append(", tcpCork=").append(tcpCork).append(", tcpQuickAck=").append(tcpQuickAck)
+				.append(", epollMode=").append(epollMode)
+				.append(", udpSockets=").append(udpSockets).append("]");
+		return builder.toString();
+	}
+
+}
@@ -254,6 +254,22 @@ public class BufferManager implements BufferManagerMBean, ByteBufAllocator {
 	public PooledByteBufAllocator getPooledBufferAllocator() {
 		return pooledBufferAllocator;
 	}
+	
+	/**
+	 * Returns the buffer arena monitor for direct buffers
+	 * @return the direct buffer arena monitor
+	 */
+	public BufferArenaMonitor getDirectMonitor() {
+		return directMonitor;
+	}
+	
+	/**
+	 * Returns the buffer arena monitor for heap buffers
+	 * @return the heap buffer arena monitor
+	 */
+	public BufferArenaMonitor getHeapMonitor() {
+		return heapMonitor;
+	}
 
   /**
    * Allocate a {@link ByteBuf}. If it is a direct or heap buffer
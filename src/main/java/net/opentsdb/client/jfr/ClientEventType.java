@@ -0,0 +1,38 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.jfr;
+
+/**
+ * <p>Title: ClientEventType</p>
+ * <p>Description: Enumerates the client's flight recorder events</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.jfr.ClientEventType</code></p>
+ */
+
+public enum ClientEventType {
+	/** A trace buffer swap */
+	SWAP,
+	/** A flush call, up to handing the batch to the channel */
+	FLUSH,
+	/** A batch write, from handing it to the channel to the write completing */
+	SEND,
+	/** A flush's round trip, from sending the batch to the server's acknowledgement */
+	ACK,
+	/** A UDP packet sealed for sending */
+	SEAL,
+	/** Data dropped without being stored */
+	DROP,
+	/** Data sent again: retried data points, resent packets and replayed spool batches */
+	RETRY;
+}
@@ -0,0 +1,69 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.jfr;
+
+/**
+ * <p>Title: ClientEvents</p>
+ * <p>Description: The facade the client emits its flight recorder events through. This is the Java 8 version,
+ * which does nothing: on Java 11 and later the multi-release jar supplies a version backed by <code>jdk.jfr</code>.
+ * Timed events are started with {@link #begin(ClientEventType)} and recorded with {@link #commit(Object, String, long, long)},
+ * instant events are recorded with {@link #emit(ClientEventType, String, long, long)}.
+ * Byte and point counts are -1 where unknown.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.jfr.ClientEvents</code></p>
+ */
+
+public final class ClientEvents {
+
+	private ClientEvents() {}
+
+	/**
+	 * Indicates if flight recorder events are supported on this JVM
+	 * @return false
+	 */
+	public static boolean isAvailable() {
+		return false;
+	}
+
+	/**
+	 * Starts a timed event
+	 * @param type The event type
+	 * @return the started event, or null if the event is not being recorded
+	 */
+	public static Object begin(final ClientEventType type) {
+		return null;
+	}
+
+	/**
+	 * Ends and records a timed event started with {@link #begin(ClientEventType)}
+	 * @param event The started event, ignored if null
+	 * @param clientType The client type
+	 * @param bytes The number of bytes
+	 * @param points The number of data points
+	 */
+	public static void commit(final Object event, final String clientType, final long bytes, final long points) {
+		/* No Op */
+	}
+
+	/**
+	 * Records an instant event
+	 * @param type The event type
+	 * @param clientType The client type
+	 * @param bytes The number of bytes
+	 * @param points The number of data points
+	 */
+	public static void emit(final ClientEventType type, final String clientType, final long bytes, final long points) {
+		/* No Op */
+	}
+}
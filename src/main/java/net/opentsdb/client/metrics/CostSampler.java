@@ -0,0 +1,228 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.metrics;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * <p>Title: CostSampler</p>
+ * <p>Description: Samples the allocated bytes and CPU time of 1 in N calls on the trace and flush paths, measured
+ * with the calling thread's allocation and CPU counters, and publishes them per data point as
+ * <b><code>cost.&lt;protocol&gt;.&lt;codec&gt;.&lt;trace|flush&gt;.allocBytesPerPoint</code></b> and
+ * <b><code>cpuNanosPerPoint</code></b> histograms. Calls that are not sampled cost one random number.
+ * Allocation sampling requires the HotSpot <code>com.sun.management.ThreadMXBean</code>; CPU sampling requires
+ * thread CPU time support. Enabled by setting <b><code>cost.sample</code></b> to N.</p>
+ * <p>On Java 14+ allocations are read with <code>getCurrentThreadAllocatedBytes()</code>, which does not allocate.
+ * Older JVMs only have <code>getThreadAllocatedBytes(long)</code>, which allocates its id and result arrays, so the 
+ * probe's own allocation, measured once at construction as the smallest difference of back to back probes, is subtracted 
+ * from every sample. Residual error: once the JIT compiles the probe, escape analysis may remove those arrays, in which
+ * case samples are under-reported by up to the bias and clamped at 0. CPU samples include the cost of the CPU time probe itself.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.metrics.CostSampler</code></p>
+ */
+
+public class CostSampler {
+	/** The thread management interface */
+	private static final ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+	/** The HotSpot thread management interface, null if not available */
+	private static final com.sun.management.ThreadMXBean hotspotTmx = hotspotTmx();
+	/** Reads the calling thread's allocated bytes without allocating (Java 14+), null if not available */
+	private static final MethodHandle currentThreadAllocated = currentThreadAllocated();
+	/** The number of back to back probe pairs the allocation bias is measured with */
+	private static final int CALIBRATION_ROUNDS = 64;
+
+	/** The sampling rate: 1 in this many calls are sampled */
+	protected final int rate;
+	/** Indicates if allocations are sampled */
+	protected final boolean allocSampling;
+	/** Indicates if CPU time is sampled */
+	protected final boolean cpuSampling;
+	/** The bytes allocated by one allocation probe, subtracted from each sample */
+	protected final long allocBias;
+	/** The allocated bytes per data point on the trace path */
+	protected final Histogram traceAlloc;
+	/** The CPU nanos per data point on the trace path */
+	protected final Histogram traceCpu;
+	/** The allocated bytes per data point on the flush path */
+	protected final Histogram flushAlloc;
+	/** The CPU nanos per data point on the flush path */
+	protected final Histogram flushCpu;
+
+	private static com.sun.management.ThreadMXBean hotspotTmx() {
+		try {
+			if(tmx instanceof com.sun.management.ThreadMXBean) {
+				final com.sun.management.ThreadMXBean hs = (com.sun.management.ThreadMXBean)tmx;
+				if(hs.isThreadAllocatedMemorySupported()) {
+					if(!hs.isThreadAllocatedMemoryEnabled()) hs.setThreadAllocatedMemoryEnabled(true);
+					return hs;
+				}
+			}
+		} catch (Throwable t) {
+			/* Not HotSpot */
+		}
+		return null;
+	}
+
+	private static MethodHandle currentThreadAllocated() {
+		if(hotspotTmx==null) return null;
+		try {
+			return MethodHandles.publicLookup()
+				.findVirtual(com.sun.management.ThreadMXBean.class, "getCurrentThreadAllocatedBytes", MethodType.methodType(long.class))
+				.bindTo(hotspotTmx);
+		} catch (Throwable t) {
+			/* Before Java 14 */
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the calling thread's allocated bytes. Only called if allocation sampling is supported.
+	 * @return the allocated bytes
+	 */
+	private static long allocatedBytes() {
+		if(currentThreadAllocated!=null) {
+			try {
+				return (long)currentThreadAllocated.invokeExact();
+			} catch (Throwable t) {
+				throw new RuntimeException("Failed to read allocated bytes", t);
+			}
+		}
+		return hotspotTmx.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Measures the bytes allocated by one allocation probe
+	 * @return the smallest difference of back to back probes
+	 */
+	private static long measureAllocBias() {
+		long bias = Long.MAX_VALUE;
+		for(int i = 0; i < CALIBRATION_ROUNDS; i++) {
+			final long a = allocatedBytes();
+			final long b = allocatedBytes();
+			bias = Math.min(bias, b - a);
+		}
+		return Math.max(0L, bias);
+	}
+
+	/**
+	 * Creates a new CostSampler and registers its histograms
+	 * @param rate The sampling rate: 1 in this many calls are sampled
+	 * @param protocol The client's protocol name
+	 * @param codec The client's codec name
+	 * @param registry The registry to register the histograms with
+	 * @param refreshPeriod The histogram snapshot refresh period in ms.
+	 */
+	public CostSampler(final int rate, final String protocol, final String codec, final MetricRegistry registry, final long refreshPeriod) {
+		if(rate < 1) throw new IllegalArgumentException("Invalid sampling rate: " + rate);
+		this.rate = rate;
+		allocSampling = hotspotTmx!=null;
+		allocBias = allocSampling ? measureAllocBias() : 0L;
+		boolean cpu = false;
+		try {
+			if(tmx.isCurrentThreadCpuTimeSupported()) {
+				if(!tmx.isThreadCpuTimeEnabled()) tmx.setThreadCpuTimeEnabled(true);
+				cpu = true;
+			}
+		} catch (Exception ex) {
+			cpu = false;
+		}
+		cpuSampling = cpu;
+		final String prefix = "cost." + protocol.toLowerCase() + "." + codec.toLowerCase() + ".";
+		traceAlloc = registry.register(prefix + "trace.allocBytesPerPoint", new Histogram(new HdrReservoir(refreshPeriod)));
+		traceCpu = registry.register(prefix + "trace.cpuNanosPerPoint", new Histogram(new HdrReservoir(refreshPeriod)));
+		flushAlloc = registry.register(prefix + "flush.allocBytesPerPoint", new Histogram(new HdrReservoir(refreshPeriod)));
+		flushCpu = registry.register(prefix + "flush.cpuNanosPerPoint", new Histogram(new HdrReservoir(refreshPeriod)));
+	}
+
+	/**
+	 * Decides if the current call is sampled and, if so, captures the calling thread's counters
+	 * @return the sample to pass to {@link #endTrace(Sample)} or {@link #endFlush(Sample, long)}, or null if the call is not sampled
+	 */
+	public Sample begin() {
+		if(ThreadLocalRandom.current().nextInt(rate)!=0) return null;
+		final Sample sample = new Sample();
+		sample.cpu = cpuSampling ? tmx.getCurrentThreadCpuTime() : 0L;
+		sample.alloc = allocSampling ? allocatedBytes() : 0L;
+		return sample;
+	}
+
+	/**
+	 * Records a sampled trace call, which traces one data point
+	 * @param sample The sample returned by {@link #begin()}, ignored if null
+	 */
+	public void endTrace(final Sample sample) {
+		if(sample==null) return;
+		record(sample, 1L, traceAlloc, traceCpu);
+	}
+
+	/**
+	 * Records a sampled flush call
+	 * @param sample The sample returned by {@link #begin()}, ignored if null
+	 * @param points The number of data points flushed, the sample is ignored if less than 1
+	 */
+	public void endFlush(final Sample sample, final long points) {
+		if(sample==null || points < 1) return;
+		record(sample, points, flushAlloc, flushCpu);
+	}
+
+	private void record(final Sample sample, final long points, final Histogram alloc, final Histogram cpu) {
+		final long allocated = allocSampling ? Math.max(0L, allocatedBytes() - sample.alloc - allocBias) : -1L;
+		final long cpuNanos = cpuSampling ? tmx.getCurrentThreadCpuTime() - sample.cpu : -1L;
+		if(allocated >= 0) alloc.update(allocated / points);
+		if(cpuNanos >= 0) cpu.update(cpuNanos / points);
+	}
+
+	/**
+	 * Indicates if allocations are sampled on this JVM
+	 * @return true if allocations are sampled
+	 */
+	public boolean isAllocSampling() {
+		return allocSampling;
+	}
+
+	/**
+	 * Returns the bytes allocated by one allocation probe, which are subtracted from each sample
+	 * @return the allocation probe bias in bytes
+	 */
+	public long getAllocBias() {
+		return allocBias;
+	}
+
+	/**
+	 * Indicates if CPU time is sampled on this JVM
+	 * @return true if CPU time is sampled
+	 */
+	public boolean isCpuSampling() {
+		return cpuSampling;
+	}
+
+	/**
+	 * <p>Title: Sample</p>
+	 * <p>Description: The calling thread's counters at the start of a sampled call</p>
+	 */
+	public static class Sample {
+		/** The thread's allocated bytes */
+		long alloc;
+		/** The thread's CPU time in nanos */
+		long cpu;
+	}
+}
@@ -0,0 +1,145 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.metrics;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+
+/**
+ * <p>Title: FlushStages</p>
+ * <p>Description: The per stage latency histograms of the trace and flush pipeline, in nanos, each backed by an
+ * {@link HdrReservoir} so the stages can be recorded on the tracing threads and event loops without contention.
+ * Registered with a client's registry, so the interval snapshots are published through JMX.
+ * Recording is skipped while the client's metrics are disabled.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.metrics.FlushStages</code></p>
+ */
+
+public class FlushStages implements MetricSet {
+
+	/**
+	 * <p>Title: Stage</p>
+	 * <p>Description: Enumerates the timed pipeline stages</p>
+	 */
+	public static enum Stage {
+		/** Waiting for the trace buffer lock before encoding a data point */
+		LOCK_WAIT("lockWait"),
+		/** Encoding a data point into the trace buffer */
+		ENCODE("encode"),
+		/** Swapping out the trace buffer, including the lock wait */
+		SWAP("swap"),
+		/** Compressing a batch or packet */
+		COMPRESS("compress"),
+		/** From handing a batch to the channel to the write completing */
+		WRITE("write"),
+		/** From sending a batch to the server's acknowledgement */
+		ACK_RTT("ackRtt"),
+		/** The import time reported by the server */
+		SERVER_ELAPSED("serverElapsed");
+
+		private Stage(final String metricName) {
+			this.metricName = "stage." + metricName;
+		}
+
+		/** The stage's metric name */
+		public final String metricName;
+	}
+
+	/** Indicates if recording is enabled */
+	protected final AtomicBoolean enabled;
+	/** The stage histograms */
+	protected final EnumMap<Stage, Histogram> histograms = new EnumMap<Stage, Histogram>(Stage.class);
+	/** The stage histograms keyed by metric name */
+	protected final Map<String, Metric> metrics;
+
+	/**
+	 * Creates a new FlushStages
+	 * @param enabled The flag indicating if recording is enabled
+	 * @param refreshPeriod The snapshot refresh period in ms.
+	 */
+	public FlushStages(final AtomicBoolean enabled, final long refreshPeriod) {
+		if(enabled==null) throw new IllegalArgumentException("The passed enabled flag was null");
+		this.enabled = enabled;
+		final Map<String, Metric> map = new HashMap<String, Metric>(Stage.values().length);
+		for(Stage stage: Stage.values()) {
+			final Histogram h = new Histogram(new HdrReservoir(refreshPeriod));
+			histograms.put(stage, h);
+			map.put(stage.metricName, h);
+		}
+		metrics = Collections.unmodifiableMap(map);
+	}
+
+	/**
+	 * Indicates if recording is enabled
+	 * @return true if recording is enabled
+	 */
+	public boolean isEnabled() {
+		return enabled.get();
+	}
+
+	/**
+	 * Returns the current timestamp if recording is enabled
+	 * @return the nano time, or 0 if recording is disabled
+	 */
+	public long start() {
+		return enabled.get() ? System.nanoTime() : 0L;
+	}
+
+	/**
+	 * Records the time elapsed in a stage since the passed start time, if recording is enabled
+	 * @param stage The stage
+	 * @param startNanos The start time returned by {@link #start()}
+	 * @return the current nano time, or 0 if recording is disabled, so consecutive stages can be chained
+	 */
+	public long stop(final Stage stage, final long startNanos) {
+		if(startNanos==0L || !enabled.get()) return 0L;
+		final long now = System.nanoTime();
+		histograms.get(stage).update(now - startNanos);
+		return now;
+	}
+
+	/**
+	 * Records a stage duration, if recording is enabled and the duration is known
+	 * @param stage The stage
+	 * @param nanos The duration in nanos, ignored if negative
+	 */
+	public void update(final Stage stage, final long nanos) {
+		if(nanos >= 0 && enabled.get()) histograms.get(stage).update(nanos);
+	}
+
+	/**
+	 * Returns the histogram for the passed stage
+	 * @param stage The stage
+	 * @return the histogram
+	 */
+	public Histogram histogram(final Stage stage) {
+		return histograms.get(stage);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.MetricSet#getMetrics()
+	 */
+	@Override
+	public Map<String, Metric> getMetrics() {
+		return metrics;
+	}
+}
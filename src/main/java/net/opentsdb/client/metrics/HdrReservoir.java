@@ -0,0 +1,260 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.metrics;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+import org.HdrHistogram.Recorder;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * <p>Title: HdrReservoir</p>
+ * <p>Description: A metrics {@link Reservoir} backed by an HdrHistogram {@link Recorder}. Updates are wait free and
+ * allocation free. A snapshot covers the values recorded in the last complete interval: the recorder's interval
+ * histogram is swapped out every refresh period by a JVM wide rotation thread, independently of readers, so every 
+ * reader (JMX, console and self reporting) sees the same interval and no reader consumes values another one 
+ * has not seen yet. Until the first interval completes, snapshots are empty. With a refresh period of 0 there is
+ * no schedule and each snapshot swaps out the interval, for a single reader.
+ * The rotation task holds the reservoir weakly and cancels itself once the reservoir is collected.
+ * Values outside the trackable range are clamped to it.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.metrics.HdrReservoir</code></p>
+ */
+
+public class HdrReservoir implements Reservoir {
+	/** The default highest trackable value: one hour in nanos */
+	public static final long DEFAULT_HIGHEST_TRACKABLE = TimeUnit.HOURS.toNanos(1);
+	/** The default number of significant value digits */
+	public static final int DEFAULT_SIGNIFICANT_DIGITS = 2;
+	/** The default snapshot refresh period in ms. */
+	public static final long DEFAULT_REFRESH_PERIOD = 1000;
+
+	/** The recorder */
+	protected final Recorder recorder;
+	/** The highest trackable value */
+	protected final long highestTrackable;
+	/** The snapshot refresh period in nanos */
+	protected final long refreshPeriod;
+	/** The last complete interval's snapshot */
+	protected volatile HdrSnapshot snapshot;
+
+	/**
+	 * <p>Title: RotatorHolder</p>
+	 * <p>Description: Lazy holder of the JVM wide rotation thread</p>
+	 */
+	private static class RotatorHolder {
+		static final ScheduledExecutorService ROTATOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "HdrReservoirRotator");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * <p>Title: Rotation</p>
+	 * <p>Description: The scheduled rotation of one reservoir, which it references weakly</p>
+	 */
+	private static class Rotation implements Runnable {
+		final WeakReference<HdrReservoir> ref;
+		volatile ScheduledFuture<?> handle = null;
+		Rotation(final HdrReservoir reservoir) {
+			ref = new WeakReference<HdrReservoir>(reservoir);
+		}
+		@Override
+		public void run() {
+			final HdrReservoir reservoir = ref.get();
+			if(reservoir==null) {
+				final ScheduledFuture<?> h = handle;
+				if(h!=null) h.cancel(false);
+				return;
+			}
+			reservoir.rotate();
+		}
+	}
+
+	/**
+	 * Creates a new HdrReservoir
+	 * @param highestTrackable The highest trackable value
+	 * @param significantDigits The number of significant value digits, 0 to 5
+	 * @param refreshPeriod The snapshot refresh period in ms.
+	 */
+	public HdrReservoir(final long highestTrackable, final int significantDigits, final long refreshPeriod) {
+		if(highestTrackable < 2) throw new IllegalArgumentException("Invalid highest trackable value: " + highestTrackable);
+		if(refreshPeriod < 0) throw new IllegalArgumentException("Invalid refresh period: " + refreshPeriod);
+		recorder = new Recorder(highestTrackable, significantDigits);
+		this.highestTrackable = highestTrackable;
+		this.refreshPeriod = TimeUnit.MILLISECONDS.toNanos(refreshPeriod);
+		snapshot = new HdrSnapshot(new Histogram(highestTrackable, significantDigits));
+		if(refreshPeriod > 0) {
+			final Rotation rotation = new Rotation(this);
+			rotation.handle = RotatorHolder.ROTATOR.scheduleAtFixedRate(rotation, refreshPeriod, refreshPeriod, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Creates a new HdrReservoir tracking up to an hour in nanos with 2 significant digits
+	 * @param refreshPeriod The snapshot refresh period in ms.
+	 */
+	public HdrReservoir(final long refreshPeriod) {
+		this(DEFAULT_HIGHEST_TRACKABLE, DEFAULT_SIGNIFICANT_DIGITS, refreshPeriod);
+	}
+
+	/**
+	 * Creates a new HdrReservoir tracking up to an hour in nanos with 2 significant digits and the default refresh period
+	 */
+	public HdrReservoir() {
+		this(DEFAULT_REFRESH_PERIOD);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Reservoir#update(long)
+	 */
+	@Override
+	public void update(final long value) {
+		recorder.recordValue(value < 0 ? 0 : value > highestTrackable ? highestTrackable : value);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>Returns the number of values in the current interval's snapshot</p>
+	 * @see com.codahale.metrics.Reservoir#size()
+	 */
+	@Override
+	public int size() {
+		return getSnapshot().size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>Returns the last complete interval's snapshot</p>
+	 * @see com.codahale.metrics.Reservoir#getSnapshot()
+	 */
+	@Override
+	public Snapshot getSnapshot() {
+		if(refreshPeriod==0L) rotate();
+		return snapshot;
+	}
+
+	/**
+	 * Swaps out the recorder's interval histogram as the last complete interval
+	 */
+	protected synchronized void rotate() {
+		snapshot = new HdrSnapshot(recorder.getIntervalHistogram());
+	}
+
+	/**
+	 * <p>Title: HdrSnapshot</p>
+	 * <p>Description: A snapshot of one interval's histogram</p>
+	 */
+	public static class HdrSnapshot extends Snapshot {
+		private static final Charset UTF8 = Charset.forName("UTF8");
+		/** The interval histogram */
+		protected final Histogram histogram;
+
+		/**
+		 * Creates a new HdrSnapshot
+		 * @param histogram The interval histogram
+		 */
+		public HdrSnapshot(final Histogram histogram) {
+			this.histogram = histogram;
+		}
+
+		@Override
+		public double getValue(final double quantile) {
+			if(quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) throw new IllegalArgumentException(quantile + " is not in [0..1]");
+			return histogram.getValueAtPercentile(quantile * 100D);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * <p>Returns each distinct recorded value once, at the histogram's precision</p>
+		 * @see com.codahale.metrics.Snapshot#getValues()
+		 */
+		@Override
+		public long[] getValues() {
+			int count = 0;
+			for(@SuppressWarnings("unused") HistogramIterationValue v: histogram.recordedValues()) count++;
+			final long[] values = new long[count];
+			int i = 0;
+			for(HistogramIterationValue v: histogram.recordedValues()) {
+				if(i==count) break;
+				values[i++] = histogram.highestEquivalentValue(v.getValueIteratedTo());
+			}
+			return values;
+		}
+
+		@Override
+		public int size() {
+			final long count = histogram.getTotalCount();
+			return count > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int)count;
+		}
+
+		@Override
+		public long getMax() {
+			return histogram.getTotalCount()==0 ? 0L : histogram.getMaxValue();
+		}
+
+		@Override
+		public double getMean() {
+			return histogram.getTotalCount()==0 ? 0D : histogram.getMean();
+		}
+
+		@Override
+		public long getMin() {
+			return histogram.getTotalCount()==0 ? 0L : histogram.getMinValue();
+		}
+
+		@Override
+		public double getStdDev() {
+			return histogram.getTotalCount()==0 ? 0D : histogram.getStdDeviation();
+		}
+
+		@Override
+		public void dump(final OutputStream output) {
+			final PrintWriter out = new PrintWriter(new OutputStreamWriter(output, UTF8));
+			try {
+				for(HistogramIterationValue v: histogram.recordedValues()) {
+					out.printf("%d\t%d%n", histogram.highestEquivalentValue(v.getValueIteratedTo()), v.getCountAtValueIteratedTo());
+				}
+			} finally {
+				out.flush();
+			}
+		}
+
+		/**
+		 * Returns the interval histogram
+		 * @return the interval histogram
+		 */
+		public Histogram getHistogram() {
+			return histogram;
+		}
+	}
+}
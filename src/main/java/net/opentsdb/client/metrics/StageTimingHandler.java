@@ -0,0 +1,52 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.metrics;
+
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * <p>Title: StageTimingHandler</p>
+ * <p>Description: An outbound handler that times the synchronous work of the handlers between it and the
+ * head of the pipeline, such as a compressor, and records it as a {@link FlushStages} stage.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.metrics.StageTimingHandler</code></p>
+ */
+
+@Sharable
+public class StageTimingHandler extends ChannelOutboundHandlerAdapter {
+	/** The stages to record with */
+	protected final FlushStages stages;
+	/** The stage timed by this handler */
+	protected final FlushStages.Stage stage;
+
+	/**
+	 * Creates a new StageTimingHandler
+	 * @param stages The stages to record with
+	 * @param stage The stage timed by this handler
+	 */
+	public StageTimingHandler(final FlushStages stages, final FlushStages.Stage stage) {
+		this.stages = stages;
+		this.stage = stage;
+	}
+
+	@Override
+	public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) throws Exception {
+		final long start = stages.start();
+		ctx.write(msg, promise);
+		stages.stop(stage, start);
+	}
+}
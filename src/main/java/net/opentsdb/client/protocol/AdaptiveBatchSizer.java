@@ -0,0 +1,211 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.protocol;
+
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import net.opentsdb.client.ClientConfiguration;
+import net.opentsdb.client.tracing.FlushResult;
+
+/**
+ * <p>Title: AdaptiveBatchSizer</p>
+ * <p>Description: A feedback controller that tunes the target batch size, which the {@link AutoFlusher} uses 
+ * as its data point flush threshold, to the largest batch the server imports within a latency SLO. 
+ * Each acknowledged batch is measured by the server reported elapsed time, or the ack round trip time
+ * when the server does not report one, and the target is adjusted AIMD style:
+ * <ul>
+ * 	<li>Above the SLO, the target is multiplied by the decrease factor, unless the batch was swapped out before the last decrease,
+ * 	so batches already in flight when the target drops do not drop it again.</li>
+ * 	<li>Below the SLO less the hysteresis band, the target grows by the additive increase, if the batch was actually filled to the target.</li>
+ * 	<li>Otherwise the target is held.</li>
+ * </ul>
+ * The target, the last measured latency and the last decision are published as gauges.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.protocol.AdaptiveBatchSizer</code></p>
+ */
+
+public class AdaptiveBatchSizer {
+	/** The default server latency SLO in ms. */
+	public static final long DEFAULT_SLO = 100;
+	/** The default minimum target batch size */
+	public static final long DEFAULT_MIN = 100;
+	/** The default maximum target batch size */
+	public static final long DEFAULT_MAX = 50000;
+	/** The default initial target batch size */
+	public static final long DEFAULT_INITIAL = 1000;
+	/** The default additive increase */
+	public static final long DEFAULT_INCREASE = 100;
+	/** The default multiplicative decrease factor */
+	public static final double DEFAULT_DECREASE = 0.5D;
+	/** The default hysteresis as a fraction of the SLO and target */
+	public static final double DEFAULT_HYSTERESIS = 0.2D;
+
+	/** The decision when the target was decreased */
+	public static final int DECREASE = -1;
+	/** The decision when the target was held */
+	public static final int HOLD = 0;
+	/** The decision when the target was increased */
+	public static final int INCREASE = 1;
+
+	/** The latency SLO in nanos */
+	protected final long slo;
+	/** The minimum target batch size */
+	protected final long min;
+	/** The maximum target batch size */
+	protected final long max;
+	/** The additive increase */
+	protected final long increase;
+	/** The multiplicative decrease factor */
+	protected final double decrease;
+	/** The hysteresis as a fraction of the SLO and target */
+	protected final double hysteresis;
+
+	/** The current target batch size */
+	protected volatile long target;
+	/** The last measured latency in nanos, -1 until the first ack */
+	protected volatile long lastLatency = -1L;
+	/** The last decision */
+	protected volatile int lastDecision = HOLD;
+	/** The nano time of the last decrease */
+	protected long lastDecrease = System.nanoTime();
+
+	/**
+	 * Creates the adaptive batch sizer configured for a client
+	 * @param config The client configuration
+	 * @param registry The registry the gauges are published in
+	 * @return the batch sizer, or null if not enabled
+	 */
+	public static AdaptiveBatchSizer create(final ClientConfiguration config, final MetricRegistry registry) {
+		if(!config.custom("batch.adaptive", Boolean.class, false)) return null;
+		return new AdaptiveBatchSizer(
+			config.custom("batch.slo", Number.class, DEFAULT_SLO).longValue(),
+			config.custom("batch.min", Number.class, DEFAULT_MIN).longValue(),
+			config.custom("batch.max", Number.class, DEFAULT_MAX).longValue(),
+			config.custom("batch.initial", Number.class, DEFAULT_INITIAL).longValue(),
+			config.custom("batch.increase", Number.class, DEFAULT_INCREASE).longValue(),
+			config.custom("batch.decrease", Number.class, DEFAULT_DECREASE).doubleValue(),
+			config.custom("batch.hysteresis", Number.class, DEFAULT_HYSTERESIS).doubleValue(),
+			registry
+		);
+	}
+
+	/**
+	 * Creates a new AdaptiveBatchSizer
+	 * @param slo The server latency SLO in ms.
+	 * @param min The minimum target batch size
+	 * @param max The maximum target batch size
+	 * @param initial The initial target batch size
+	 * @param increase The number of data points added to the target when under the SLO
+	 * @param decrease The factor the target is multiplied by when over the SLO
+	 * @param hysteresis The fraction of the SLO and of the target defining the hold band
+	 * @param registry The registry the gauges are published in
+	 */
+	public AdaptiveBatchSizer(final long slo, final long min, final long max, final long initial, final long increase, final double decrease, final double hysteresis, final MetricRegistry registry) {
+		if(slo < 1) throw new IllegalArgumentException("Invalid SLO: " + slo);
+		if(min < 1 || max < min) throw new IllegalArgumentException("Invalid batch size range: " + min + "-" + max);
+		if(increase < 1) throw new IllegalArgumentException("Invalid increase: " + increase);
+		if(decrease <= 0D || decrease >= 1D) throw new IllegalArgumentException("Invalid decrease factor: " + decrease);
+		if(hysteresis < 0D || hysteresis >= 1D) throw new IllegalArgumentException("Invalid hysteresis: " + hysteresis);
+		this.slo = TimeUnit.MILLISECONDS.toNanos(slo);
+		this.min = min;
+		this.max = max;
+		this.increase = increase;
+		this.decrease = decrease;
+		this.hysteresis = hysteresis;
+		target = Math.max(min, Math.min(max, initial));
+		registry.register("batch.adaptive.target", new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return target;
+			}
+		});
+		registry.register("batch.adaptive.latencyMs", new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				final long l = lastLatency;
+				return l < 0 ? -1L : TimeUnit.NANOSECONDS.toMillis(l);
+			}
+		});
+		registry.register("batch.adaptive.decision", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return lastDecision;
+			}
+		});
+	}
+
+	/**
+	 * Adjusts the target from an acknowledged batch
+	 * @param result The flush result of the batch
+	 * @param swapNanos The nano time the batch was swapped out, 0 if unknown
+	 * @return the decision
+	 */
+	public synchronized int update(final FlushResult result, final long swapNanos) {
+		final long points = result.getPoints();
+		final long latency = result.getElapsed() >= 0 ? result.getElapsed() : result.getRtt();
+		if(points < 1 || latency < 0) return HOLD;
+		lastLatency = latency;
+		final long t = target;
+		int decision = HOLD;
+		if(latency > slo) {
+			if(swapNanos==0L || swapNanos - lastDecrease > 0) {
+				target = Math.max(min, (long)(t * decrease));
+				lastDecrease = System.nanoTime();
+				decision = DECREASE;
+			}
+		} else if(latency < slo - (long)(slo * hysteresis)) {
+			if(points >= t - (long)(t * hysteresis)) {
+				target = Math.min(max, t + increase);
+				decision = INCREASE;
+			}
+		}
+		lastDecision = decision;
+		return decision;
+	}
+
+	/**
+	 * Returns the current target batch size
+	 * @return the target number of data points per batch
+	 */
+	public long getTarget() {
+		return target;
+	}
+
+	/**
+	 * Returns the last measured latency
+	 * @param unit The unit to return the latency in
+	 * @return the latency or -1 if no batch has been acknowledged
+	 */
+	public long getLastLatency(final TimeUnit unit) {
+		final long l = lastLatency;
+		return l < 0 ? -1L : unit.convert(l, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Returns the last decision
+	 * @return {@link #DECREASE}, {@link #HOLD} or {@link #INCREASE}
+	 */
+	public int getLastDecision() {
+		return lastDecision;
+	}
+
+	@Override
+	public String toString() {
+		return "AdaptiveBatchSizer [target=" + target + ", slo=" + TimeUnit.NANOSECONDS.toMillis(slo) + ", min=" + min + ", max=" + max
+				+ ", increase=" + increase + ", decrease=" + decrease + ", hysteresis=" + hysteresis + "]";
+	}
+}
@@ -0,0 +1,225 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.protocol;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import net.opentsdb.client.ClientConfiguration;
+import net.opentsdb.client.tracing.FlushResult;
+
+/**
+ * <p>Title: AutoFlusher</p>
+ * <p>Description: The automatic flush policy of a client. The batch is flushed when any configured trigger is hit:
+ * <ul>
+ * 	<li><b><code>flush.maxbytes</code></b>: the trace buffer holds this many bytes</li>
+ * 	<li><b><code>flush.maxpoints</code></b>: the batch holds this many data points</li>
+ * 	<li><b><code>flush.maxage</code></b>: the oldest data point in the batch is this many ms. old</li>
+ * 	<li><b><code>flush.interval</code></b>: this many ms. have passed since the last interval flush, 
+ * 	plus or minus a random <b><code>flush.jitter</code></b> ms., so a fleet of clients does not flush in lockstep</li>
+ * </ul>
+ * When the client has an {@link AdaptiveBatchSizer}, its current target replaces <code>flush.maxpoints</code>.
+ * Triggers are evaluated every <b><code>flush.check</code></b> ms. on a JVM wide {@link HashedWheelTimer} 
+ * shared by all clients, which also runs the flush, so flushing never happens on a thread calling <code>trace</code>.
+ * Flushes are asynchronous, so the timer thread never waits on the server. Empty batches are never flushed.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.protocol.AutoFlusher</code></p>
+ */
+
+public class AutoFlusher implements TimerTask {
+	/** The default trigger evaluation period in ms. */
+	public static final long DEFAULT_CHECK_PERIOD = 50;
+
+	private static final Logger log = LoggerFactory.getLogger(AutoFlusher.class);
+
+	/** The client flushed by this policy */
+	protected final BaseClient<?> client;
+	/** The trace buffer size in bytes that triggers a flush, 0 if disabled */
+	protected final long maxBytes;
+	/** The number of data points that triggers a flush, 0 if disabled */
+	protected final long maxPoints;
+	/** The adaptive batch sizer providing the data point threshold, null if not enabled */
+	protected final AdaptiveBatchSizer sizer;
+	/** The age in nanos of the oldest data point that triggers a flush, 0 if disabled */
+	protected final long maxAge;
+	/** The flush interval in nanos, 0 if disabled */
+	protected final long interval;
+	/** The maximum interval jitter in nanos */
+	protected final long jitter;
+	/** The trigger evaluation period in ms. */
+	protected final long checkPeriod;
+	/** The nano time of the next interval flush. Confined to the timer thread */
+	protected long nextInterval;
+	/** The pending evaluation */
+	protected volatile Timeout timeout = null;
+	/** Indicates if this policy has been stopped */
+	protected volatile boolean stopped = false;
+
+	/** The number of flushes triggered by the buffer size */
+	protected final Counter bytesFlushes;
+	/** The number of flushes triggered by the data point count */
+	protected final Counter pointsFlushes;
+	/** The number of flushes triggered by the data point age */
+	protected final Counter ageFlushes;
+	/** The number of flushes triggered by the interval */
+	protected final Counter intervalFlushes;
+
+	/**
+	 * <p>Title: TimerHolder</p>
+	 * <p>Description: Lazy holder of the shared timer</p>
+	 */
+	private static class TimerHolder {
+		static final HashedWheelTimer TIMER = new HashedWheelTimer(new DefaultThreadFactory("OpenTSDBAutoFlush", true), 10, TimeUnit.MILLISECONDS, 512);
+	}
+
+	/**
+	 * Creates the flush policy configured for the passed client
+	 * @param client The client to flush
+	 * @param config The client configuration
+	 * @return the flush policy, or null if no trigger is configured
+	 */
+	public static AutoFlusher create(final BaseClient<?> client, final ClientConfiguration config) {
+		final long maxBytes = config.custom("flush.maxbytes", Number.class, 0).longValue();
+		final long maxPoints = config.custom("flush.maxpoints", Number.class, 0).longValue();
+		final long maxAge = config.custom("flush.maxage", Number.class, 0).longValue();
+		final long interval = config.custom("flush.interval", Number.class, 0).longValue();
+		if(maxBytes <= 0 && maxPoints <= 0 && maxAge <= 0 && interval <= 0 && client.batchSizer==null) return null;
+		final long jitter = config.custom("flush.jitter", Number.class, interval / 10).longValue();
+		final long checkPeriod = config.custom("flush.check", Number.class, DEFAULT_CHECK_PERIOD).longValue();
+		return new AutoFlusher(client, maxBytes, maxPoints, maxAge, interval, jitter, checkPeriod);
+	}
+
+	/**
+	 * Creates a new AutoFlusher
+	 * @param client The client to flush
+	 * @param maxBytes The trace buffer size in bytes that triggers a flush, 0 to disable
+	 * @param maxPoints The number of data points that triggers a flush, 0 to disable
+	 * @param maxAge The age in ms. of the oldest data point that triggers a flush, 0 to disable
+	 * @param interval The flush interval in ms., 0 to disable
+	 * @param jitter The maximum random jitter in ms. added to or subtracted from each interval
+	 * @param checkPeriod The trigger evaluation period in ms.
+	 */
+	public AutoFlusher(final BaseClient<?> client, final long maxBytes, final long maxPoints, final long maxAge, final long interval, final long jitter, final long checkPeriod) {
+		if(client==null) throw new IllegalArgumentException("The passed client was null");
+		if(checkPeriod < 1) throw new IllegalArgumentException("Invalid check period: " + checkPeriod);
+		if(jitter < 0 || (interval > 0 && jitter >= interval)) throw new IllegalArgumentException("Invalid jitter: " + jitter);
+		this.client = client;
+		this.maxBytes = Math.max(0, maxBytes);
+		this.maxPoints = Math.max(0, maxPoints);
+		sizer = client.batchSizer;
+		this.maxAge = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxAge));
+		this.interval = TimeUnit.MILLISECONDS.toNanos(Math.max(0, interval));
+		this.jitter = TimeUnit.MILLISECONDS.toNanos(jitter);
+		this.checkPeriod = checkPeriod;
+		bytesFlushes = client.registry.counter("autoflush.bytes");
+		pointsFlushes = client.registry.counter("autoflush.points");
+		ageFlushes = client.registry.counter("autoflush.age");
+		intervalFlushes = client.registry.counter("autoflush.interval");
+	}
+
+	/**
+	 * Starts evaluating the triggers
+	 */
+	public void start() {
+		nextInterval = nextInterval(System.nanoTime());
+		timeout = TimerHolder.TIMER.newTimeout(this, checkPeriod, TimeUnit.MILLISECONDS);
+		log.info("Auto flush started: {}", this);
+	}
+
+	/**
+	 * Stops evaluating the triggers
+	 */
+	public void stop() {
+		stopped = true;
+		final Timeout t = timeout;
+		if(t!=null) t.cancel();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.util.TimerTask#run(io.netty.util.Timeout)
+	 */
+	@Override
+	public void run(final Timeout t) throws Exception {
+		if(stopped) return;
+		try {
+			final long points = client.currentBatchSize.sum();
+			final long now = System.nanoTime();
+			final long pointLimit = sizer!=null ? sizer.getTarget() : maxPoints;
+			Counter trigger = null;
+			if(points > 0) {
+				if(pointLimit > 0 && points >= pointLimit) {
+					trigger = pointsFlushes;
+				} else if(maxBytes > 0 && bufferedBytes() >= maxBytes) {
+					trigger = bytesFlushes;
+				} else if(maxAge > 0 && client.getOldestUnflushedAge(TimeUnit.NANOSECONDS) >= maxAge) {
+					trigger = ageFlushes;
+				} else if(interval > 0 && now - nextInterval >= 0) {
+					trigger = intervalFlushes;
+				}
+			}
+			if(interval > 0 && now - nextInterval >= 0) nextInterval = nextInterval(now);
+			if(trigger!=null) {
+				trigger.inc();
+				flush();
+			}
+		} catch (Exception ex) {
+			log.warn("Auto flush failed: {}", ex.toString());
+		} finally {
+			if(!stopped) timeout = TimerHolder.TIMER.newTimeout(this, checkPeriod, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void flush() {
+		final CompletableFuture<FlushResult> f = client.flushAsync();
+		f.whenComplete(new BiConsumer<FlushResult, Throwable>() {
+			@Override
+			public void accept(final FlushResult result, final Throwable cause) {
+				if(cause!=null) log.debug("Auto flush failed: {}", cause.toString());
+			}
+		});
+	}
+
+	/**
+	 * Returns an approximate size of the trace buffer, read without the lock
+	 * @return the number of buffered bytes
+	 */
+	private long bufferedBytes() {
+		final ByteBuf buf = client.traceBuffer;
+		return buf==null ? 0L : buf.readableBytes();
+	}
+
+	private long nextInterval(final long now) {
+		final long j = jitter > 0 ? ThreadLocalRandom.current().nextLong(-jitter, jitter + 1) : 0L;
+		return now + interval + j;
+	}
+
+	@Override
+	public String toString() {
+		return "AutoFlusher [maxBytes=" + maxBytes + ", maxPoints=" + (sizer!=null ? "adaptive" : String.valueOf(maxPoints)) + ", maxAge=" + TimeUnit.NANOSECONDS.toMillis(maxAge)
+				+ ", interval=" + TimeUnit.NANOSECONDS.toMillis(interval) + ", jitter=" + TimeUnit.NANOSECONDS.toMillis(jitter) + ", check=" + checkPeriod + "]";
+	}
+}
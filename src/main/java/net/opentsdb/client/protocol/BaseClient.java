@@ -12,25 +12,38 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.client.protocol;
 
+import java.io.File;
 import java.lang.management.ManagementFactory;
 import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.codahale.metrics.ConsoleReporter;
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.JmxReporter;
 import com.codahale.metrics.Meter;
@@ -39,7 +52,9 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.MetricSet;
 import com.codahale.metrics.Timer;
 import com.codahale.metrics.Timer.Context;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.util.concurrent.RateLimiter;
 import com.heliosapm.streams.common.naming.AgentName;
 import com.heliosapm.streams.common.naming.AgentNameChangeListener;
 
@@ -47,6 +62,7 @@ import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.Channel;
@@ -56,20 +72,39 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.socket.DatagramPacket;
 import io.netty.handler.codec.http.DefaultFullHttpRequest;
-import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 import io.netty.util.internal.logging.Slf4JLoggerFactory;
 import net.opentsdb.client.CallbackHandler;
 import net.opentsdb.client.ClientConfiguration;
 import net.opentsdb.client.Protocol;
+import net.opentsdb.client.jfr.ClientEventType;
+import net.opentsdb.client.jfr.ClientEvents;
 import net.opentsdb.client.json.JSONOps;
+import net.opentsdb.client.metrics.CostSampler;
+import net.opentsdb.client.metrics.CostSampler.Sample;
+import net.opentsdb.client.metrics.FlushStages;
+import net.opentsdb.client.metrics.FlushStages.Stage;
+import net.opentsdb.client.metrics.HdrReservoir;
+import net.opentsdb.client.protocol.http.PutDetailsResponse;
+import net.opentsdb.client.protocol.http.PutFailureHandler;
+import net.opentsdb.client.protocol.http.QuarantineListener;
+import net.opentsdb.client.spool.DiskSpool;
+import net.opentsdb.client.tracing.FlushResult;
 import net.opentsdb.client.tracing.TraceCodec;
 import net.opentsdb.client.tracing.Tracer;
+import net.opentsdb.client.util.EventLoopRegistry;
 import net.opentsdb.client.util.SpinLock;
 import net.opentsdb.client.util.StringsUtil;
 
@@ -92,12 +127,20 @@ public abstract class BaseClient<T extends BaseClient<T>> implements Tracer, Cal
 	protected final boolean pooledBuffers;
 	/** The data point codec */
 	protected final TraceCodec codec;
+	/** Indicates if the server answers each batch (false for telnet puts, which are only answered on error) */
+	protected final boolean acknowledged;
 	/** The byte buf allocator */
 	protected final ByteBufAllocator allocator;
 	/** The initial size of the trace buffer */
 	protected final int initialTraceBufferSize;
 	/** Indicates if gzip is enabled */
 	protected final boolean gzipEnabled;
+	/** Indicates if JSON batches are streamed to the server as a chunked HTTP request while they are traced */
+	protected final boolean chunkedHttp;
+	/** The number of buffered trace bytes that triggers writing an HTTP chunk */
+	protected final int chunkSize;
+	/** Indicates if the current batch's chunked HTTP request has been started. Guarded by the spin lock */
+	protected boolean chunkedRequestOpen = false;
 	/** Instance logger */
 	protected final Logger log = LoggerFactory.getLogger(getClass());
 	/** The buffer tracing events are written into */
@@ -126,8 +169,38 @@ public abstract class BaseClient<T extends BaseClient<T>> implements Tracer, Cal
 	protected final Timer importTimer = registry.timer("import");
 	protected final Histogram importAlloc = registry.histogram("importAlloc");
 	protected final Histogram bytesSent = registry.histogram("bytesSent");
-	
-	protected final LongAdder bytesEncoded = new LongAdder();
+	/** The pipeline stage latency histograms */
+	protected final FlushStages stages;
+	/** The age in nanos of a batch's oldest data point when the server acknowledged it */
+	protected final Histogram oldestPointAge;
+	/** The nanos from a batch's swap to the server's acknowledgement */
+	protected final Histogram flushToAck;
+	/** The nano time of the first data point traced into the current batch, 0 if the batch is empty. Written in the spin lock */
+	protected volatile long firstTraceNanos = 0L;
+	/** The nano time of the last data point traced into the current batch. Guarded by the spin lock */
+	protected long lastTraceNanos = 0L;
+	/** The first trace nano time of the last swapped out batch. Guarded by the spin lock */
+	protected long swappedFirstTrace = 0L;
+	/** The last trace nano time of the last swapped out batch. Guarded by the spin lock */
+	protected long swappedLastTrace = 0L;
+	/** The nano time of the last swap. Guarded by the spin lock */
+	protected long swappedNanos = 0L;
+	/** The trace and flush cost sampler, null if not enabled */
+	protected final CostSampler costs;
+	/** The client type reported in flight recorder events */
+	protected final String clientType;
+	/** The total traced data points at the last swap. Guarded by the spin lock */
+	protected long swappedTotal = 0L;
+	/** The self telemetry reporter, null if not enabled */
+	protected final SelfReporter selfReporter;
+	/** The self telemetry reporting period in seconds, 0 if not enabled */
+	protected final long selfReportInterval;
+	/** The adaptive batch sizer, null if not enabled */
+	protected final AdaptiveBatchSizer batchSizer;
+	/** The in flight batch limiter, null if not enabled */
+	protected final ConcurrencyLimiter limiter;
+	/** The automatic flush policy, null if not enabled */
+	protected final AutoFlusher autoFlusher;
 	
 	protected final JmxReporter reporter = JmxReporter.forRegistry(registry)
 			.registerWith(ManagementFactory.getPlatformMBeanServer())
@@ -140,19 +213,52 @@ public abstract class BaseClient<T extends BaseClient<T>> implements Tracer, Cal
 	protected EventLoopGroup group = null;
 	protected ChannelInitializer<? extends Channel> initializer = null;
 	protected Class<? extends Channel> channelClass = null;
-	protected Channel channel = null;
+	protected volatile Channel channel = null;
+	protected final AtomicBoolean reconnecting = new AtomicBoolean(false);
+	
+	/** The outage spool, null if spooling is not enabled */
+	protected final DiskSpool spool;
+	/** The spool replay rate limiter in batches per second, null if spooling is not enabled */
+	protected final RateLimiter replayLimiter;
+	/** The spool replay schedule handle, null if spooling is not enabled */
+	protected final ScheduledFuture<?> replayHandle;
+	protected final Counter spoolCounter = registry.counter("spooled");
+	protected final Counter replayCounter = registry.counter("replayed");
+	
+	/** The content of the HTTP response being received. Confined to the channel's event loop */
+	protected CompositeByteBuf httpResponseContent = null;
+	/** The reusable put details response holder. Confined to the channel's event loop */
+	protected final PutDetailsResponse putDetailsResponse = new PutDetailsResponse();
+	/** Retries or quarantines the data points rejected in put details responses, null if not enabled */
+	protected final PutFailureHandler putFailures;
 	
 	protected final ClientConfiguration clientConfig;
 	protected final boolean async;
 	
-	protected final Map<String, Metric> registeredMetrics;
 	protected final AtomicBoolean metricsEnabled = new AtomicBoolean(false);
 	protected final AtomicBoolean initialized = new AtomicBoolean(false);
+	protected final AtomicBoolean closed = new AtomicBoolean(false);
 	
 	protected final AtomicReference<String> hostName = new AtomicReference<String>(null); 
 	protected final AtomicReference<String> appName = new AtomicReference<String>(null);
 	
-	protected final AtomicReference<CountDownLatch> responseLatch = new AtomicReference<CountDownLatch>(null);
+	/** The default time in ms. a sync mode {@link #flush()} waits for the server's response */
+	public static final long DEFAULT_FLUSH_TIMEOUT = 5000;
+	/** The time in ms. a sync mode {@link #flush()} waits for the server's response */
+	protected final long flushTimeout;
+	/** The requests written to the connection and awaiting a response, in write order. Not used by UDP */
+	protected final Deque<PendingFlush> inflight = new ArrayDeque<PendingFlush>();
+	/** The pending flush of the open chunked HTTP request. Guarded by the spin lock */
+	protected PendingFlush chunkedPending = null;
+	/** The sends held until the open chunked HTTP request's last chunk is written. Guarded by the spin lock */
+	protected final List<Runnable> heldSends = new ArrayList<Runnable>();
+	/** Fails the requests awaiting a response on a connection when it closes */
+	protected final ChannelFutureListener inflightCloser = new ChannelFutureListener() {
+		@Override
+		public void operationComplete(final ChannelFuture f) throws Exception {
+			failInflight(f.channel(), new ClosedChannelException());
+		}
+	};
 	
 	protected final AgentName agentName = AgentName.getInstance(); 
 
@@ -173,51 +279,166 @@ public abstract class BaseClient<T extends BaseClient<T>> implements Tracer, Cal
 		appName.set(agentName.getAppName());
 		agentName.addAgentNameChangeListener(this);
 		clientConfig = clientConfiguration;
+		clientType = clientConfiguration.type();
+		final long refreshPeriod = clientConfiguration.custom("metrics.refresh", Number.class, HdrReservoir.DEFAULT_REFRESH_PERIOD).longValue();
+		stages = new FlushStages(metricsEnabled, refreshPeriod);
+		registry.registerAll(stages);
+		final int costRate = clientConfiguration.custom("cost.sample", Number.class, 0).intValue();
+		costs = costRate > 0 ? new CostSampler(costRate, clientConfiguration.protocol().name(), clientConfiguration.encoding().name(), registry, refreshPeriod) : null;
+		oldestPointAge = registry.register("batch.oldestPointAgeAtAck", new Histogram(new HdrReservoir(refreshPeriod)));
+		flushToAck = registry.register("batch.flushToAck", new Histogram(new HdrReservoir(refreshPeriod)));
+		registry.register("batch.oldestUnflushedMs", new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return getOldestUnflushedAge(TimeUnit.MILLISECONDS);
+			}
+		});
+		selfReportInterval = clientConfiguration.custom("selfreport.interval", Number.class, 0).longValue();
+		selfReporter = selfReportInterval > 0 ? new SelfReporter(this, clientConfiguration.custom("selfreport.prefix", String.class, SelfReporter.DEFAULT_PREFIX)) : null;
+		batchSizer = AdaptiveBatchSizer.create(clientConfiguration, registry);
+		limiter = ConcurrencyLimiter.create(clientConfiguration, registry, refreshPeriod);
+		autoFlusher = AutoFlusher.create(this, clientConfiguration);
 		async = clientConfiguration.async();
+		flushTimeout = clientConfiguration.custom("flush.timeout", Number.class, DEFAULT_FLUSH_TIMEOUT).longValue();
 		protocol = clientConfiguration.protocol();		
 		msTime = clientConfiguration.msTime();		
 		directBuffers = clientConfiguration.directBuffers();
 		pooledBuffers = clientConfiguration.pooledBuffers();
 		codec = clientConfiguration.encoding();
+		acknowledged = codec!=TraceCodec.PUT;
 		socketAddress = clientConfiguration.address();
 		gzipEnabled = clientConfiguration.gzip();
+		final boolean chunked = clientConfiguration.custom("http.chunked", Boolean.class, false);
+		if(chunked && codec!=TraceCodec.JSON) log.warn("Chunked HTTP is only supported with the JSON codec. Ignoring.");
+		chunkedHttp = chunked && codec==TraceCodec.JSON;
+		chunkSize = clientConfiguration.custom("http.chunksize", Number.class, 8192).intValue();
+		if(codec==TraceCodec.JSON && clientConfiguration.custom("put.retry", Boolean.class, true)) {
+			putFailures = new PutFailureHandler(
+					clientConfiguration.custom("put.retry.patterns", String.class, PutFailureHandler.DEFAULT_RETRYABLE),
+					clientConfiguration.custom("put.retry.max", Number.class, PutFailureHandler.DEFAULT_MAX_RETRIES).intValue(),
+					clientConfiguration.custom("put.retry.attempts", Number.class, PutFailureHandler.DEFAULT_MAX_ATTEMPTS).intValue(),
+					clientConfiguration.custom("put.retry.ttl", Number.class, PutFailureHandler.DEFAULT_ATTEMPT_TTL).longValue(),
+					clientConfiguration.custom("put.quarantine.rate", Number.class, PutFailureHandler.DEFAULT_QUARANTINE_RATE).doubleValue(),
+					new Consumer<String>() {
+						@Override
+						public void accept(final String datapoint) {
+							retrace(datapoint);
+						}
+					}, registry);
+		} else {
+			putFailures = null;
+		}
 		initialTraceBufferSize = clientConfiguration.traceBufferSize();
 		allocator = pooledBuffers ? new PooledByteBufAllocator(directBuffers) : new UnpooledByteBufAllocator(directBuffers);
 		conversion = msTime ? TimeUnit.MILLISECONDS : TimeUnit.SECONDS;
 		group = protocol.eventLoopGroup(clientConfiguration);
-		initializer = protocol.channelInitializer(clientConfiguration, this);
-		channelClass = protocol.channelClass(clientConfiguration);
-		bootstrap
-			.channel(channelClass)
-			.group(group)
-			.handler(initializer);
-		registeredMetrics = new HashMap<String, Metric>(registry.getMetrics());
-		final ChannelFuture connectFuture;
-		if(protocol==Protocol.UDP) {
-			connectFuture =  bootstrap.bind(0);
-		} else {
-			connectFuture = bootstrap.connect(socketAddress);
-		}
-		if(!connectFuture.awaitUninterruptibly(5, TimeUnit.SECONDS)) {
-			throw new RuntimeException("Timed out waiting for connect to [" + socketAddress + "]");
+		try {
+			initializer = protocol.channelInitializer(clientConfiguration, this);
+			channelClass = protocol.channelClass(clientConfiguration);
+			bootstrap
+				.channel(channelClass)
+				.group(group)
+				.handler(initializer);
+			clientConfiguration.socketOptions().apply(bootstrap, clientConfiguration, allocator);
+			final String spoolDir = clientConfiguration.custom("spool.dir", String.class, null);
+			if(spoolDir!=null && !spoolDir.trim().isEmpty()) {
+				final File dir = new File(spoolDir.trim(), clientConfiguration.type().replaceAll("[^A-Za-z0-9._-]", "_") + "_" 
+						+ socketAddress.toString().replaceAll("[^A-Za-z0-9._-]", "_"));
+				spool = new DiskSpool(dir, 
+						clientConfiguration.custom("spool.segmentsize", Number.class, DiskSpool.DEFAULT_SEGMENT_SIZE).intValue(),
+						clientConfiguration.custom("spool.maxsize", Number.class, DiskSpool.DEFAULT_MAX_SIZE).longValue());
+				replayLimiter = RateLimiter.create(clientConfiguration.custom("spool.replayrate", Number.class, 10).doubleValue());
+				registry.register("spoolBytes", new Gauge<Long>() {
+					@Override
+					public Long getValue() {
+						return spool.getPendingBytes();
+					}
+				});
+				registry.register("spoolBatches", new Gauge<Long>() {
+					@Override
+					public Long getValue() {
+						return spool.getPendingRecords();
+					}
+				});
+				registry.register("spoolDropped", new Gauge<Long>() {
+					@Override
+					public Long getValue() {
+						return spool.getDroppedRecords();
+					}
+				});
+				replayHandle = DiskSpool.schedule(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							replaySpool();
+						} catch (Exception ex) {
+							log.error("Spool replay failed", ex);
+						}
+					}
+				}, 100);
+				log.info("Spooling enabled: {}", spool);
+			} else {
+				spool = null;
+				replayLimiter = null;
+				replayHandle = null;
+			}
+			final ChannelFuture connectFuture;
+			if(protocol==Protocol.UDP) {
+				connectFuture =  bootstrap.bind(0);
+			} else {
+				connectFuture = bootstrap.connect(socketAddress);
+			}
+			if(!connectFuture.awaitUninterruptibly(5, TimeUnit.SECONDS)) {
+				throw new RuntimeException("Timed out waiting for connect to [" + socketAddress + "]");
+			}
+			channel =  connectFuture.channel();
+			if(protocol!=Protocol.UDP) channel.closeFuture().addListener(inflightCloser);
+			log.info("\n\t==========================\n\t[{}]:[{}] Connected to [{}]\n\t==========================\n", hostName.get(), appName.get(), socketAddress);
+		} catch (Throwable t) {
+			abandon();
+			throw t;
 		}
-		channel =  connectFuture.channel();
-		log.info("\n\t==========================\n\t[{}]:[{}] Connected to [{}]\n\t==========================\n", hostName.get(), appName.get(), socketAddress);
 		
 		reporter.start();
 	}
 	
+	/**
+	 * Releases what a constructor that failed after acquiring the event loop group has set up: 
+	 * the spool replay, the spool and the reference to the shared group
+	 */
+	private void abandon() {
+		if(replayHandle!=null) replayHandle.cancel(false);
+		if(spool!=null) try { spool.close(); } catch (Exception x) {/* No Op */}
+		try { EventLoopRegistry.release(group); } catch (Exception x) {/* No Op */}
+	}
+	
 	@SuppressWarnings("unchecked")
 	public T initialize() {
 		if(initialized.compareAndSet(false, true)) {
 			swap();
+			if(selfReporter!=null) {
+				selfReporter.start(selfReportInterval, TimeUnit.SECONDS);
+				log.info("Self reporting every {} s.", selfReportInterval);
+			}
+			if(autoFlusher!=null) autoFlusher.start();
 		}
 		return (T)this;
 	}
 	
 	public void close() {
+		if(!closed.compareAndSet(false, true)) return;
+		if(replayHandle!=null) replayHandle.cancel(false);
+		if(selfReporter!=null) selfReporter.stop();
+		if(autoFlusher!=null) autoFlusher.stop();
+		if(limiter!=null) limiter.drain();
 		try { channel.close().sync(); } catch (Exception x) {/* No Op */}
-		try { group.shutdownGracefully(); } catch (Exception x) {/* No Op */}
+		if(chunkedHttp) releaseHeldSends();
+		if(httpResponseContent!=null) {
+			httpResponseContent.release();
+			httpResponseContent = null;
+		}
+		if(spool!=null) spool.close();
+		try { EventLoopRegistry.release(group); } catch (Exception x) {/* No Op */}
 	}
 	
 	@Override
@@ -228,9 +449,15 @@ public abstract class BaseClient<T extends BaseClient<T>> implements Tracer, Cal
 		
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 * <p>Returns all the metrics currently registered, including those registered by subclasses after construction.
+	 * All registered metrics are also published to JMX by the {@link #reporter}.</p>
+	 * @see com.codahale.metrics.MetricSet#getMetrics()
+	 */
 	@Override
-	public Map<String, Metric> getMetrics() {		
-		return Collections.unmodifiableMap(registeredMetrics);
+	public Map<String, Metric> getMetrics() {
+		return registry.getMetrics();
 	}
 	
 	public void printStats() {
@@ -260,10 +487,16 @@ public abstract class BaseClient<T extends BaseClient<T>> implements Tracer, Cal
 	 */
 	protected ByteBuf swap() {
 		final Context ctx = swapTimer.time();
+		final long start = stages.start();
+		final Object event = ClientEvents.begin(ClientEventType.SWAP);
 		try {
 			return spinLock.doInLock(true, new Callable<ByteBuf>(){
 				@Override
 				public ByteBuf call() throws Exception {
+					swappedFirstTrace = firstTraceNanos;
+					swappedLastTrace = lastTraceNanos;
+					swappedNanos = System.nanoTime();
+					firstTraceNanos = 0L;
 					final ByteBuf buff = allocator.buffer(initialTraceBufferSize);
 					final ByteBufOutputStream buffOut = new ByteBufOutputStream(buff);
 					ByteBuf retBuf = null;
@@ -284,16 +517,39 @@ public abstract class BaseClient<T extends BaseClient<T>> implements Tracer, Cal
 					traceBuffer = buff;
 					output = buffOut;
 					writeHeader();
+					final long total = totalDatapointsSent.sum();
+					ClientEvents.commit(event, clientType, retBuf==null ? 0L : retBuf.readableBytes(), total - swappedTotal);
+					swappedTotal = total;
 					return retBuf;
 				}
 			});
 		} finally {
 			if(metricsEnabled.get()) {
 				ctx.stop();
+				stages.stop(Stage.SWAP, start);
 			}
 		}
 	}
 	
+	/**
+	 * Records the trace time of a data point traced into the current batch. Must be called while holding the spin lock.
+	 */
+	protected void traced() {
+		final long now = System.nanoTime();
+		if(firstTraceNanos==0L) firstTraceNanos = now;
+		lastTraceNanos = now;
+	}
+	
+	/**
+	 * Returns the age of the oldest data point traced but not yet flushed
+	 * @param unit The unit to return the age in
+	 * @return the age, or 0 if no data point is waiting to be flushed
+	 */
+	public long getOldestUnflushedAge(final TimeUnit unit) {
+		final long first = firstTraceNanos;
+		return first==0L ? 0L : unit.convert(System.nanoTime() - first, TimeUnit.NANOSECONDS);
+	}
+	
 	protected void writeHeader() {
 		codec.header(output);
 	}
@@ -380,12 +636,18 @@ public abstract class BaseClient<T extends BaseClient<T>> implements Tracer, Cal
 	 */
 	@Override
 	public void trace(final long time, final Object metric, final long value, final Map<Object, Object> tags) {
+		final Sample sample = costs==null ? null : costs.begin();
+		final long start = stages.start();
 		spinLock.doInLock(new Runnable(){
 			@Override
 			public void run() {
 				try {
+					final long locked = stages.stop(Stage.LOCK_WAIT, start);
 					codec.encode(output, time, cleanMetric(metric), value, cleanTags(tags));
+					stages.stop(Stage.ENCODE, locked);
+					traced();
 					totalDatapointsSent.increment();
+					if(chunkedHttp) writeChunk();
 				} catch (IllegalArgumentException iae) {
 					invalidTraceCounter.inc();
 					log.debug("Invalid trace: {}:{}", metric, tags);
@@ -393,6 +655,7 @@ public abstract class BaseClient<T extends BaseClient<T>> implements Tracer, Cal
 			}
 		});
 		currentBatchSize.increment();
+		if(sample!=null) costs.endTrace(sample);
 	}
 
 	/**
@@ -401,12 +664,18 @@ public abstract class BaseClient<T extends BaseClient<T>> implements Tracer, Cal
 	 */
 	@Override
 	public void trace(final long time, final Object metric, final double value, final Map<Object, Object> tags) {
+		final Sample sample = costs==null ? null : costs.begin();
+		final long start = stages.start();
 		spinLock.doInLock(new Runnable(){
 			@Override
 			public void run() {
 				try {
+					final long locked = stages.stop(Stage.LOCK_WAIT, start);
 					codec.encode(output, time, cleanMetric(metric), value, cleanTags(tags));
+					stages.stop(Stage.ENCODE, locked);
+					traced();
 					totalDatapointsSent.increment();
+					if(chunkedHttp) writeChunk();
 				} catch (IllegalArgumentException iae) {
 					invalidTraceCounter.inc();
 					log.debug("Invalid trace: {}:{}", metric, tags);
@@ -414,6 +683,7 @@ public abstract class BaseClient<T extends BaseClient<T>> implements Tracer, Cal
 			}
 		});
 		currentBatchSize.increment();
+		if(sample!=null) costs.endTrace(sample);
 	}
 
 	/**
@@ -434,6 +704,49 @@ public abstract class BaseClient<T extends BaseClient<T>> implements Tracer, Cal
 		trace(time(), metric, value, tags);		
 	}
 	
+	/**
+	 * Builds a series handle for the passed metric and tags, validating them and applying the host and app tags once
+	 * @param metric The metric name
+	 * @param tags The tags
+	 * @return the series handle
+	 * @throws IllegalArgumentException if the metric or tags are not valid
+	 */
+	public SeriesHandle series(final Object metric, final Map<Object, Object> tags) {
+		if(metric==null) throw new IllegalArgumentException("The passed metric was null");
+		if(tags==null) throw new IllegalArgumentException("The passed tags were null");
+		return new SeriesHandle(this, cleanMetric(metric), Collections.unmodifiableMap(cleanTags(tags)));
+	}
+	
+	/**
+	 * Traces a data point for a pre-built series
+	 * @param time The timestamp
+	 * @param series The series
+	 * @param isDouble true if the value is a double, false if it is a long
+	 * @param longValue The long value
+	 * @param doubleValue The double value
+	 */
+	protected void traceSeries(final long time, final SeriesHandle series, final boolean isDouble, final long longValue, final double doubleValue) {
+		final Sample sample = costs==null ? null : costs.begin();
+		final long start = stages.start();
+		spinLock.doInLock(new Runnable(){
+			@Override
+			public void run() {
+				final long locked = stages.stop(Stage.LOCK_WAIT, start);
+				if(isDouble) {
+					codec.encode(output, time, series.metric, doubleValue, series.tags);
+				} else {
+					codec.encode(output, time, series.metric, longValue, series.tags);
+				}
+				stages.stop(Stage.ENCODE, locked);
+				traced();
+				totalDatapointsSent.increment();
+				if(chunkedHttp) writeChunk();
+			}
+		});
+		currentBatchSize.increment();
+		if(sample!=null) costs.endTrace(sample);
+	}
+	
 	/**
 	 * Returns the current time in ms. or s. depending on config
 	 * @return the current time
@@ -446,39 +759,344 @@ public abstract class BaseClient<T extends BaseClient<T>> implements Tracer, Cal
 	
 	/**
 	 * {@inheritDoc}
+	 * <p>In sync mode, waits up to <b><code>flush.timeout</code></b> ms. for the server's response. 
+	 * A failed flush is rethrown as a <code>RuntimeException</code> caused by the failure.</p>
 	 * @see net.opentsdb.client.tracing.Tracer#flush()
 	 */
 	@Override
-	public synchronized void flush() {
-		waitOnLatch(2000);
-		final long dpoints = currentBatchSize.sumThenReset();
+	public void flush() {
+		final CompletableFuture<FlushResult> result = flushAsync();
+		if(async) return;
+		try {
+			result.get(flushTimeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException tex) {
+			throw new RuntimeException("Timed out after " + flushTimeout + " ms. waiting on flush response");
+		} catch (InterruptedException iex) {
+			throw new RuntimeException("Thread interrupted while waiting on flush response", iex);
+		} catch (ExecutionException eex) {
+			throw new RuntimeException("Flush failed: " + eex.getCause(), eex.getCause());
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>The returned future is completed on the event loop when the server's response is matched to the batch:
+	 * in write order for connection oriented protocols, and by request id for UDP.</p>
+	 * @see net.opentsdb.client.tracing.Tracer#flushAsync()
+	 */
+	@Override
+	public CompletableFuture<FlushResult> flushAsync() {
+		final Sample sample = costs==null ? null : costs.begin();
 		final Context ctx = traceFlushTimer.time();
-		final ByteBuf flushedBuffer = swap();
-		if(flushedBuffer!=null && flushedBuffer.readableBytes() > 0) {
-			final CountDownLatch latch = new CountDownLatch(1);
-			if(!async) responseLatch.set(latch);
-			send(flushedBuffer).addListener(new ChannelFutureListener() {
-				@Override
-				public void operationComplete(final ChannelFuture f) throws Exception {					
-					if(f.isSuccess()) {
-						if(metricsEnabled.get()) {
-							ctx.close();
-							datapointMeter.mark(dpoints);
-						}
-						//totalDatapointsSent.add(dpoints);
+		final Object event = ClientEvents.begin(ClientEventType.FLUSH);
+		final PendingFlush pending = new PendingFlush(currentBatchSize.sumThenReset());
+		final PendingFlush sent = chunkedHttp ? swapAndEndChunked(pending) : swapAndSend(pending);
+		ClientEvents.commit(event, clientType, sent==null ? 0L : sent.bytes, sent==null ? 0L : sent.points);
+		if(sample!=null) costs.endFlush(sample, sent==null ? 0L : sent.points);
+		if(sent==null) return CompletableFuture.completedFuture(FlushResult.EMPTY);
+		sent.future.whenComplete(new BiConsumer<FlushResult, Throwable>() {
+			@Override
+			public void accept(final FlushResult result, final Throwable cause) {
+				if(result!=null) ClientEvents.commit(sent.ackEvent, clientType, result.getBytes(), result.getPoints());
+				if(result!=null && batchSizer!=null) batchSizer.update(result, sent.swapNanos);
+				if(result!=null && metricsEnabled.get()) {
+					ctx.close();
+					datapointMeter.mark(result.getPoints());
+					stages.update(Stage.ACK_RTT, result.getRtt());
+					stages.update(Stage.SERVER_ELAPSED, result.getElapsed());
+					if(result.getRtt() >= 0) {
+						if(sent.firstTraceNanos!=0L) oldestPointAge.update(sent.ackNanos - sent.firstTraceNanos);
+						if(sent.swapNanos!=0L) flushToAck.update(sent.ackNanos - sent.swapNanos);
 					}
 				}
-			});
-			if(!async) {
-				try {
-					if(!latch.await(5000, TimeUnit.SECONDS)) {
-						throw new RuntimeException("Timeout while waiting on response");
+			}
+		});
+		return sent.future;
+	}
+	
+	/**
+	 * Swaps out the trace buffer and sends it, or spools it if the channel is down
+	 * @param pending The flush the batch is sent for
+	 * @return the pending flush or null if nothing was sent
+	 */
+	protected PendingFlush swapAndSend(final PendingFlush pending) {
+		final ByteBuf flushedBuffer = swapForFlush(pending);
+		if(flushedBuffer==null) return null;
+		if(flushedBuffer.readableBytes()==0) {
+			flushedBuffer.release();
+			return null;
+		}
+		pending.bytes = flushedBuffer.readableBytes();
+		if(spoolIfDown(flushedBuffer)) {
+			pending.complete(-1L, -1L, -1L);
+			return pending;
+		}
+		if(limiter!=null) limitedSend(flushedBuffer, pending);
+		else dispatch(flushedBuffer, pending);
+		return pending;
+	}
+	
+	/**
+	 * Sends a batch. In chunked HTTP mode, the send is made in the spin lock and held until the open chunked request's
+	 * last chunk is written, so spool replays and limiter dispatches never write a request into an open chunked body.
+	 * @param sendBuffer The batch to send
+	 * @param pending The flush the batch is sent for, or null for a spool replay
+	 */
+	protected void dispatch(final ByteBuf sendBuffer, final PendingFlush pending) {
+		if(!chunkedHttp) {
+			send(sendBuffer, pending);
+			return;
+		}
+		spinLock.doInLock(true, new Runnable(){
+			@Override
+			public void run() {
+				final Runnable sender = new Runnable(){
+					@Override
+					public void run() {
+						send(sendBuffer, pending);
+					}
+				};
+				if(chunkedRequestOpen) heldSends.add(sender);
+				else sender.run();
+			}
+		});
+	}
+	
+	/**
+	 * Sends the sends held while a chunked request was open, in the order they were dispatched
+	 */
+	protected void releaseHeldSends() {
+		spinLock.doInLock(true, new Runnable(){
+			@Override
+			public void run() {
+				if(heldSends.isEmpty()) return;
+				final List<Runnable> senders = new ArrayList<Runnable>(heldSends);
+				heldSends.clear();
+				for(Runnable sender: senders) sender.run();
+			}
+		});
+	}
+	
+	/**
+	 * Sends a batch through the in flight limiter, which dispatches it now, queues it or sheds it.
+	 * The batch's permit is released when its flush completes, or fails at the limiter's ack deadline.
+	 * @param flushedBuffer The flushed buffer
+	 * @param pending The flush the batch is sent for
+	 */
+	protected void limitedSend(final ByteBuf flushedBuffer, final PendingFlush pending) {
+		final boolean accepted = limiter.submit(new Runnable(){
+			@Override
+			public void run() {
+				dispatch(flushedBuffer, pending);
+				final ScheduledFuture<?> deadline = channel.eventLoop().schedule(new Runnable(){
+					@Override
+					public void run() {
+						if(pending.future.isDone()) return;
+						limiter.expired();
+						expire(pending);
+					}
+				}, limiter.getAckDeadline(), TimeUnit.MILLISECONDS);
+				pending.future.whenComplete(new BiConsumer<FlushResult, Throwable>() {
+					@Override
+					public void accept(final FlushResult result, final Throwable cause) {
+						deadline.cancel(false);
+						limiter.release(result==null ? -1L : result.getRtt(), cause!=null);
+					}
+				});
+			}
+		});
+		if(!accepted) shed(flushedBuffer, pending);
+	}
+	
+	/**
+	 * Fails a request that was not answered by its ack deadline. The request stays in the requests awaiting
+	 * a response as a tombstone, so its late response is swallowed by its already failed flush instead of
+	 * being matched to the next request in write order. A closed channel clears it with the rest.
+	 * @param request The expired request
+	 */
+	protected void expire(final PendingFlush request) {
+		ClientEvents.emit(ClientEventType.DROP, clientType, request.bytes, request.points);
+		request.fail(new TimeoutException("No response within " + limiter.getAckDeadline() + " ms."));
+	}
+	
+	/**
+	 * Sheds a batch the in flight limiter rejected, spooling it if spooling is enabled, and releases it
+	 * @param flushedBuffer The flushed buffer
+	 * @param pending The flush the batch was sent for
+	 */
+	protected void shed(final ByteBuf flushedBuffer, final PendingFlush pending) {
+		try {
+			if(spool!=null && spool.append(flushedBuffer)) {
+				spoolCounter.inc();
+				pending.complete(-1L, -1L, -1L);
+			} else {
+				ClientEvents.emit(ClientEventType.DROP, clientType, flushedBuffer.readableBytes(), pending.points);
+				pending.fail(new RuntimeException("Batch shed, in flight limit reached"));
+			}
+		} finally {
+			flushedBuffer.release();
+		}
+	}
+	
+	/**
+	 * Swaps out the trace buffer for a flush. Subclasses may override to associate the swapped batch with the flush.
+	 * @param pending The flush the batch is swapped out for
+	 * @return the swapped out buffer
+	 */
+	protected ByteBuf swapForFlush(final PendingFlush pending) {
+		return spinLock.doInLock(true, new Callable<ByteBuf>(){
+			@Override
+			public ByteBuf call() throws Exception {
+				final ByteBuf swapped = swap();
+				pending.swapped(swappedFirstTrace, swappedLastTrace, swappedNanos);
+				return swapped;
+			}
+		});
+	}
+	
+	/**
+	 * Swaps out the trace buffer and, if the batch's chunked request was started, writes the remainder 
+	 * as the last HTTP chunk. Otherwise the batch is sent as a regular request. Runs in the spin lock 
+	 * so the last chunk is queued before the next batch can start a new request.
+	 * @param pending The flush the batch is sent for
+	 * @return the pending flush of the request or null if nothing was sent
+	 */
+	protected PendingFlush swapAndEndChunked(final PendingFlush pending) {
+		return spinLock.doInLock(true, new Callable<PendingFlush>(){
+			@Override
+			public PendingFlush call() throws Exception {
+				if(!chunkedRequestOpen) return swapAndSend(pending);
+				chunkedRequestOpen = false;
+				final PendingFlush request = chunkedPending;
+				chunkedPending = null;
+				final ByteBuf flushedBuffer = swap();
+				request.swapped(swappedFirstTrace, swappedLastTrace, swappedNanos);
+				final LastHttpContent last = flushedBuffer==null ? LastHttpContent.EMPTY_LAST_CONTENT : new DefaultLastHttpContent(flushedBuffer);
+				request.points = pending.points;
+				request.bytes += last.content().readableBytes();
+				request.sentNanos = System.nanoTime();
+				writeChunk(last, request);
+				releaseHeldSends();
+				return request;
+			}
+		});
+	}
+	
+	/**
+	 * Streams the buffered trace bytes to the server as an HTTP chunk once they reach the chunk size, 
+	 * starting the batch's chunked request first if required. Skipped while the channel is not writable
+	 * so the bytes stay in the trace buffer. Must be called while holding the spin lock.
+	 */
+	protected void writeChunk() {
+		if(traceBuffer.readableBytes() < chunkSize || !channel.isActive() || !channel.isWritable()) return;
+		if(!chunkedRequestOpen) {
+			final DefaultHttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/api/put?details");
+			request.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
+			HttpUtil.setTransferEncodingChunked(request, true);
+			if(gzipEnabled) {
+				request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, HttpHeaderValues.GZIP);
+			}
+			chunkedPending = new PendingFlush(0L);
+			synchronized(inflight) {
+				chunkedPending.sent(channel);
+				inflight.add(chunkedPending);
+				channel.write(request);
+			}
+			chunkedRequestOpen = true;
+		}
+		final int bytes = traceBuffer.readableBytes();
+		final ByteBuf chunk = allocator.buffer(bytes);
+		traceBuffer.readBytes(chunk, bytes);
+		traceBuffer.discardReadBytes();
+		chunkedPending.bytes += bytes;
+		writeChunk(new DefaultHttpContent(chunk), chunkedPending);
+	}
+	
+	/**
+	 * Writes and flushes the passed HTTP chunk
+	 * @param chunk The chunk to write
+	 * @param request The pending flush of the chunk's request, failed if the write fails
+	 * @return the write's ChannelFuture
+	 */
+	protected ChannelFuture writeChunk(final HttpContent chunk, final PendingFlush request) {
+		final long bytes = chunk.content().readableBytes();
+		final long start = stages.start();
+		final Object event = ClientEvents.begin(ClientEventType.SEND);
+		return channel.writeAndFlush(chunk).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(final ChannelFuture f) throws Exception {
+				if(f.isSuccess()) {
+					ClientEvents.commit(event, clientType, bytes, -1L);
+					if(chunk instanceof LastHttpContent) {
+						request.written();
+						sendCounter.inc();
+					}
+					if(metricsEnabled.get()) {
+						bytesSent.update(bytes);
+						stages.stop(Stage.WRITE, start);
 					}
-				} catch (InterruptedException ex) {
-					throw new RuntimeException("Thread interrupted while waiting on response");
+				} else {
+					traceErrorCounter.inc();
+					log.error("Chunk write failed", f.cause());
+					failed(request, f.cause());
 				}
 			}
+		});
+	}
+	
+	/**
+	 * Writes the passed buffer to the spool and releases it if spooling is enabled and the channel cannot be written to
+	 * @param flushedBuffer The flushed buffer
+	 * @return true if the buffer was spooled, false if it should be sent
+	 */
+	protected boolean spoolIfDown(final ByteBuf flushedBuffer) {
+		if(spool==null || (channel.isActive() && channel.isWritable())) return false;
+		try {
+			if(spool.append(flushedBuffer)) spoolCounter.inc();
+			else ClientEvents.emit(ClientEventType.DROP, clientType, flushedBuffer.readableBytes(), -1L);
+		} finally {
+			flushedBuffer.release();
 		}
+		return true;
+	}
+	
+	/**
+	 * Replays spooled batches at the configured rate once the channel is connected and writable,
+	 * attempting to reconnect if the channel is closed
+	 */
+	protected void replaySpool() {
+		if(spool.isEmpty()) return;
+		if(!channel.isActive()) {
+			reconnect();
+			return;
+		}
+		while(channel.isWritable() && replayLimiter.tryAcquire()) {
+			final ByteBuf buf = spool.poll(allocator);
+			if(buf==null) break;
+			replayCounter.inc();
+			ClientEvents.emit(ClientEventType.RETRY, clientType, buf.readableBytes(), -1L);
+			dispatch(buf, null);
+		}
+	}
+	
+	/**
+	 * Reconnects a closed connection oriented channel
+	 */
+	protected void reconnect() {
+		if(protocol==Protocol.UDP || channel.isActive() || !reconnecting.compareAndSet(false, true)) return;
+		bootstrap.connect(socketAddress).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(final ChannelFuture f) throws Exception {
+				reconnecting.set(false);
+				if(f.isSuccess()) {
+					channel = f.channel();
+					channel.closeFuture().addListener(inflightCloser);
+					log.info("Reconnected to [{}]", socketAddress);
+				} else {
+					log.debug("Reconnect to [{}] failed: {}", socketAddress, f.cause().toString());
+				}
+			}
+		});
 	}
 	
 	public String printCurrentBuffer() {
@@ -496,39 +1114,69 @@ public abstract class BaseClient<T extends BaseClient<T>> implements Tracer, Cal
 	}
 	
 	/**
-	 * Sends the accumulated payload
+	 * Sends the accumulated payload of a spool replay
 	 * @param sendBuffer The accumulated buffer
 	 * @return The write's ChannelFuture
 	 */
 	protected ChannelFuture send(final ByteBuf sendBuffer) {
+		return send(sendBuffer, null);
+	}
+	
+	/**
+	 * Sends the accumulated payload. The request is queued in {@link #inflight} in write order so
+	 * the server's response can be matched to it.
+	 * @param sendBuffer The accumulated buffer
+	 * @param pending The flush the payload is sent for, or null for a spool replay
+	 * @return The write's ChannelFuture
+	 */
+	protected ChannelFuture send(final ByteBuf sendBuffer, final PendingFlush pending) {
 		final long bytes = sendBuffer.readableBytes();		
-		final ChannelFuture cf;
+		final ByteBuf spoolCopy = spool==null ? null : sendBuffer.retainedDuplicate();
+		final PendingFlush request = pending==null ? new PendingFlush(0L) : pending;
+		request.bytes = bytes;
+		final Object message;
 		if(codec==TraceCodec.JSON) {
-			final DefaultFullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/api/put?details", sendBuffer);
-			request.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
-			request.headers().set(HttpHeaderNames.CONTENT_LENGTH, bytes);
+			final DefaultFullHttpRequest httpRequest = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/api/put?details", sendBuffer);
+			httpRequest.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
+			httpRequest.headers().set(HttpHeaderNames.CONTENT_LENGTH, bytes);
 			if(gzipEnabled) {
-				request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, HttpHeaderValues.GZIP);
+				httpRequest.headers().set(HttpHeaderNames.ACCEPT_ENCODING, HttpHeaderValues.GZIP);
 			}
-			cf = channel.writeAndFlush(request);		
+			message = httpRequest;
 		} else {
-			cf = channel.writeAndFlush(sendBuffer);
+			message = sendBuffer;
+		}
+		final ChannelFuture cf;
+		final long start = stages.start();
+		final Object event = ClientEvents.begin(ClientEventType.SEND);
+		synchronized(inflight) {
+			request.sent(channel);
+			if(acknowledged) inflight.add(request);
+			cf = channel.writeAndFlush(message);
 		}
 		cf.addListener(new ChannelFutureListener() {
 			@Override
 			public void operationComplete(final ChannelFuture f) throws Exception {
 				if(f.isSuccess()) {
+					request.written();
+					if(!acknowledged) request.complete(-1L, -1L, -1L);
+					ClientEvents.commit(event, clientType, bytes, request.points);
 					sendCounter.inc();
 //					log.info("Flushed {} Bytes", bytes);
 					//datapointMeter.mark(datapoints);
 					//totalBytesSent.add(bytes);
 					if(metricsEnabled.get()) {
 						bytesSent.update(bytes);
+						stages.stop(Stage.WRITE, start);
 					}
 				} else {
 					traceErrorCounter.inc();
 					log.error("TraceSend Failed", f.cause());
+					failed(request, f.cause());
+					if(spoolCopy!=null && spool.append(spoolCopy)) spoolCounter.inc();
+					else ClientEvents.emit(ClientEventType.DROP, clientType, bytes, request.points);
 				}
+				if(spoolCopy!=null) spoolCopy.release();
 			} 
 		});
 		return cf;
@@ -543,13 +1191,23 @@ public abstract class BaseClient<T extends BaseClient<T>> implements Tracer, Cal
 		return codec;
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 * @see net.opentsdb.client.CallbackHandler#flushStages()
+	 */
+	@Override
+	public FlushStages flushStages() {
+		return stages;
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 * @see net.opentsdb.client.CallbackHandler#onResponse(io.netty.buffer.ByteBuf)
 	 */
 	@Override
 	public void onResponse(final ByteBuf response) {
-		dropLatch();
+		final PendingFlush request = nextInflight();
+		if(request!=null) request.complete(-1L, -1L, -1L);
 	}
 	
 	/**
@@ -558,87 +1216,273 @@ public abstract class BaseClient<T extends BaseClient<T>> implements Tracer, Cal
 	 */
 	@Override
 	public void onResponse(final DatagramPacket response) {
-		dropLatch();
+		/* No Op */
 	}
 	
+	/**
+	 * Removes the oldest request awaiting a response
+	 * @return the oldest request or null if no request is awaiting a response
+	 */
+	protected PendingFlush nextInflight() {
+		synchronized(inflight) {
+			return inflight.poll();
+		}
+	}
 	
-	protected void dropLatch() {
-		final CountDownLatch latch = responseLatch.getAndSet(null);
-		if(latch!=null) latch.countDown();
+	/**
+	 * Removes a request whose write failed from the requests awaiting a response and fails its flush
+	 * @param request The failed request
+	 * @param cause The write failure
+	 */
+	protected void failed(final PendingFlush request, final Throwable cause) {
+		synchronized(inflight) {
+			inflight.remove(request);
+		}
+		request.fail(cause);
 	}
 	
-	protected void waitOnLatch(final long timeoutMs) {
-		final CountDownLatch latch = responseLatch.get();
-		if(latch!=null) {
-			try {
-				if(!latch.await(timeoutMs, TimeUnit.MILLISECONDS)) {
-					throw new RuntimeException("Thread timed out while waiting on flush latch (" + timeoutMs + ") ms.");
+	/**
+	 * Fails the flushes of all the requests awaiting a response on the passed channel
+	 * @param closed The closed channel
+	 * @param cause The failure cause
+	 */
+	protected void failInflight(final Channel closed, final Throwable cause) {
+		final List<PendingFlush> failed = new ArrayList<PendingFlush>();
+		synchronized(inflight) {
+			for(Iterator<PendingFlush> iter = inflight.iterator(); iter.hasNext();) {
+				final PendingFlush request = iter.next();
+				if(request.channel==closed) {
+					iter.remove();
+					failed.add(request);
 				}
-			} catch (InterruptedException iex) {
-				throw new RuntimeException("Thread interrupted while waiting on flush latch", iex);
 			}
 		}
+		for(PendingFlush request: failed) request.fail(cause);
 	}
 	
 	/**
 	 * {@inheritDoc}
+	 * <p>Accumulates the content chunks of the response without copying them and, once the last chunk arrives,
+	 * drops the flush latch and streams the put details out of the content. Runs on the event loop.</p>
 	 * @see net.opentsdb.client.CallbackHandler#onResponse(io.netty.handler.codec.http.HttpObject)
 	 */
 	@Override
 	public void onResponse(final HttpObject response) {
-		dropLatch();
-		if(metricsEnabled.get()) {
-			if(response instanceof FullHttpResponse) {
-				final FullHttpResponse full = (FullHttpResponse)response;
-				final ByteBuf buf = full.content();
-				buf.retain();
-	//			log.info("Response: {}", buf.toString(UTF8));
-				group.execute(new Runnable(){
-					public void run() {
-						final JsonNode node = JSONOps.parseToNode(buf);
-						if(node.has("elapsed")) {
-							final long elapsed = node.get("elapsed").asLong();
-							importTimer.update(elapsed, TimeUnit.NANOSECONDS);
-							importAlloc.update(node.get("allocated").asLong());
-						}
-					}
-				});
-				
-	//			log.info("Response: {}", full.content().toString(UTF8));
-			} else {
-	//			log.info("Not a full response: {}", response);
+		if(response instanceof HttpResponse) {
+			if(httpResponseContent!=null) httpResponseContent.release();
+			httpResponseContent = allocator.compositeBuffer(Integer.MAX_VALUE);
+		}
+		if(response instanceof HttpContent) {
+			final ByteBuf chunk = ((HttpContent)response).content();
+			if(httpResponseContent!=null && chunk.isReadable()) httpResponseContent.addComponent(true, chunk.retain());
+		}
+		if(response instanceof LastHttpContent) {
+			final CompositeByteBuf content = httpResponseContent;
+			httpResponseContent = null;
+			final PendingFlush request = nextInflight();
+			try {
+				if(content!=null && content.isReadable()) {
+					onPutDetails(content, request);
+				} else if(request!=null) {
+					request.complete(-1L, -1L, -1L);
+				}
+			} catch (Exception ex) {
+				log.warn("Failed to process put response: {}", ex.toString());
+				if(request!=null) request.fail(ex);
+			} finally {
+				if(content!=null) content.release();
 			}
 		}
 	}
 	
+	/**
+	 * Traces a data point rejected by the server into the current batch again, as the raw JSON the server reported
+	 * @param datapoint The data point's JSON
+	 */
+	protected void retrace(final String datapoint) {
+		spinLock.doInLock(new Runnable(){
+			@Override
+			public void run() {
+				try {
+					final JsonGenerator jgen = JSONOps.generatorFor(output);
+					jgen.writeRawValue(datapoint);
+					jgen.flush();
+					traced();
+					totalDatapointsSent.increment();
+					if(chunkedHttp) writeChunk();
+				} catch (Exception ex) {
+					invalidTraceCounter.inc();
+					log.debug("Failed to retrace: {}", datapoint, ex);
+				}
+			}
+		});
+		currentBatchSize.increment();
+	}
+	
+	/**
+	 * Sets the listener that receives the data points the server rejected with a permanent error.
+	 * Only supported for HTTP with the JSON codec.
+	 * @param listener The listener, or null to restore the default logging listener
+	 */
+	public void setQuarantineListener(final QuarantineListener listener) {
+		if(putFailures==null) throw new IllegalStateException("Put failure handling is only enabled for the JSON codec");
+		putFailures.setListener(listener);
+	}
+	
+	/**
+	 * Handles the complete content of an <b><code>/api/put?details</code></b> response
+	 * @param content The response content
+	 * @param request The request the response is for, or null if no request was awaiting a response
+	 */
+	protected void onPutDetails(final ByteBuf content, final PendingFlush request) {
+		final PutDetailsResponse r = putDetailsResponse.parse(content, putFailures==null ? null : putFailures.begin());
+		if(r.isFailed()) {
+			log.error("Trace failure:[{}]", r.getCause());
+			traceErrorCounter.inc();
+			if(request!=null) request.fail(new RuntimeException("Trace failure: " + r.getCause()));
+			return;
+		}
+		if(r.getFailed() > 0) {
+			final long retried = putFailures==null ? 0L : putFailures.getRetries();
+			if(retried > 0) ClientEvents.emit(ClientEventType.RETRY, clientType, -1L, retried);
+			if(r.getFailed() > retried) ClientEvents.emit(ClientEventType.DROP, clientType, -1L, r.getFailed() - retried);
+		}
+		if(metricsEnabled.get()) {
+			if(r.getElapsed() >= 0) importTimer.update(r.getElapsed(), TimeUnit.NANOSECONDS);
+			if(r.getAllocated() >= 0) importAlloc.update(r.getAllocated());
+			if(r.getFailed() > 0) traceErrorCounter.inc(r.getFailed());
+		}
+		if(request!=null) request.complete(r.getSuccess(), r.getFailed(), r.getElapsed());
+	}
+	
 	
 	/**
 	 * {@inheritDoc}
+	 * <p>Each response is exactly one JSON object, framed by the pipeline's <code>JsonObjectDecoder</code>,
+	 * so responses coalesced into one read or split across reads each complete one request.
+	 * Telnet puts are only answered with line framed plain text errors, which are logged and counted.</p>
 	 * @see net.opentsdb.client.CallbackHandler#onResponse(java.lang.String[])
 	 */
 	@Override
 	public void onResponse(final String... response) {
-		dropLatch();
 		log.debug("Response: [{}]", response[0]);
-		if(metricsEnabled.get()) {
-			group.execute(new Runnable(){
-				public void run() {
-					final JsonNode node = JSONOps.parseToNode(response[0]);
-					if(node.has("cause")) {
-						log.error("Trace failure:[{}]", node.get("cause").textValue());
-						traceErrorCounter.inc();
-					} else {
-						final long elapsed = node.get("elapsed").asLong();
-						importTimer.update(elapsed, TimeUnit.NANOSECONDS);
-						importAlloc.update(node.get("allocated").asLong());
-						traceErrorCounter.inc(node.get("errors").asLong());
-					}
-				}
-			});
+		if(!acknowledged) {
+			// a telnet put error line, its batch was already completed when written
+			log.warn("Trace failure:[{}]", response[0]);
+			traceErrorCounter.inc();
+			return;
+		}
+		final PendingFlush request = nextInflight();
+		try {
+			final JsonNode node = JSONOps.parseToNode(response[0]);
+			if(node.has("cause")) {
+				log.error("Trace failure:[{}]", node.get("cause").textValue());
+				traceErrorCounter.inc();
+				if(request!=null) request.fail(new RuntimeException("Trace failure: " + node.get("cause").textValue()));
+				return;
+			}
+			final long elapsed = node.path("elapsed").asLong(-1L);
+			final long errors = node.path("errors").asLong(0L);
+			if(metricsEnabled.get()) {
+				if(elapsed >= 0) importTimer.update(elapsed, TimeUnit.NANOSECONDS);
+				if(node.has("allocated")) importAlloc.update(node.get("allocated").asLong());
+				traceErrorCounter.inc(errors);
+			}
+			if(request!=null) request.complete(node.path("success").asLong(-1L), node.path("failed").asLong(errors), elapsed);
+		} catch (Exception ex) {
+			log.warn("Failed to process response: {}", ex.toString());
+			if(request!=null) request.fail(ex);
 		}
 	}
 
 	
+	/**
+	 * <p>Title: PendingFlush</p>
+	 * <p>Description: A batch sent to the server and the future completed with its {@link FlushResult}</p>
+	 */
+	protected static class PendingFlush {
+		/** The future completed with the flush result */
+		protected final CompletableFuture<FlushResult> future = new CompletableFuture<FlushResult>();
+		/** The number of data points in the batch */
+		protected volatile long points;
+		/** The number of bytes sent */
+		protected volatile long bytes = 0L;
+		/** The nano time the batch was sent */
+		protected volatile long sentNanos = 0L;
+		/** The channel the batch was sent on */
+		protected volatile Channel channel = null;
+		/** The batch's request id, -1 if it has none */
+		protected volatile long requestId = -1L;
+		/** The nano time of the batch's first trace, 0 if unknown */
+		protected volatile long firstTraceNanos = 0L;
+		/** The nano time of the batch's last trace, 0 if unknown */
+		protected volatile long lastTraceNanos = 0L;
+		/** The nano time the batch was swapped out, 0 if unknown */
+		protected volatile long swapNanos = 0L;
+		/** The nano time the batch's write completed, 0 if not written */
+		protected volatile long writtenNanos = 0L;
+		/** The nano time the server acknowledged the batch, 0 if not acknowledged */
+		protected volatile long ackNanos = 0L;
+		/** The flight recorder event timing the batch's round trip, null if not recorded */
+		protected volatile Object ackEvent = null;
+		
+		/**
+		 * Creates a new PendingFlush
+		 * @param points The number of data points in the batch
+		 */
+		protected PendingFlush(final long points) {
+			this.points = points;
+		}
+		
+		/**
+		 * Records the channel the batch is being sent on and the send time
+		 * @param channel The channel
+		 */
+		protected void sent(final Channel channel) {
+			this.channel = channel;
+			sentNanos = System.nanoTime();
+			ackEvent = ClientEvents.begin(ClientEventType.ACK);
+		}
+		
+		/**
+		 * Records the batch's trace and swap times
+		 * @param firstTrace The nano time of the first trace
+		 * @param lastTrace The nano time of the last trace
+		 * @param swap The nano time of the swap
+		 */
+		protected void swapped(final long firstTrace, final long lastTrace, final long swap) {
+			firstTraceNanos = firstTrace;
+			lastTraceNanos = lastTrace;
+			swapNanos = swap;
+		}
+		
+		/**
+		 * Records the completion of the batch's write
+		 */
+		protected void written() {
+			writtenNanos = System.nanoTime();
+		}
+		
+		/**
+		 * Completes the flush with the server's response
+		 * @param success The number of data points the server stored, -1 if not reported
+		 * @param failed The number of data points the server failed to store, -1 if not reported
+		 * @param elapsed The server side elapsed time in nanos, -1 if not reported
+		 */
+		protected void complete(final long success, final long failed, final long elapsed) {
+			ackNanos = System.nanoTime();
+			future.complete(new FlushResult(points, bytes, success, failed, elapsed, sentNanos==0L ? -1L : ackNanos - sentNanos));
+		}
+		
+		/**
+		 * Fails the flush
+		 * @param cause The failure cause
+		 */
+		protected void fail(final Throwable cause) {
+			future.completeExceptionally(cause);
+		}
+	}
+	
 	public long getTotalDatapointsSent() {
 		return totalDatapointsSent.longValue();
 	}
@@ -69,6 +69,22 @@ public enum Command implements ICommand {
 	
 	/** Aborts on a {@code CR (':')} */
 	public static final ByteProcessor FIND_COLON = new IndexOfProcessor((byte) ':');
+	/** Aborts on a {@code ':'} or a {@code LF} */
+	public static final ByteProcessor FIND_COLON_OR_LF = new ByteProcessor() {
+		@Override
+		public boolean process(final byte value) throws Exception {
+			return value!=':' && value!='\n';
+		}
+	};
+	/** The commands */
+	private static final Command[] COMMANDS = values();
+	/** The command names as ASCII bytes, indexed by ordinal */
+	private static final byte[][] COMMAND_NAMES = new byte[COMMANDS.length][];
+	static {
+		for(Command c: COMMANDS) COMMAND_NAMES[c.ordinal()] = c.name().getBytes(UTF8);
+	}
+	/** The request id option as ASCII bytes */
+	private static final byte[] REQUEST_ID = "--request-id=".getBytes(UTF8);
 	
 	
 	public static void main(String[] args) {
@@ -79,6 +95,32 @@ public enum Command implements ICommand {
 		System.out.println("Payload:\n[" + extractPayload(buf).toString(UTF8) + "]");
 	}
 	
+	/**
+	 * Matches the command a response starts with by comparing bytes, without decoding the command line
+	 * @param buf The response buffer
+	 * @return the matched command or null if the response does not start with a known command
+	 */
+	public static Command matchCommand(final ByteBuf buf) {
+		if(buf==null) throw new IllegalArgumentException("The passed buffer was null");
+		final int start = buf.readerIndex();
+		final int readable = buf.readableBytes();
+		outer:
+		for(int c = 0; c < COMMANDS.length; c++) {
+			final byte[] name = COMMAND_NAMES[c];
+			if(readable < name.length) continue;
+			for(int i = 0; i < name.length; i++) {
+				// ASCII upper case
+				byte b = buf.getByte(start + i);
+				if(b >= 'a' && b <= 'z') b -= 32;
+				if(b!=name[i]) continue outer;
+			}
+			if(readable==name.length) return COMMANDS[c];
+			final byte next = buf.getByte(start + name.length);
+			if(next==':' || next==' ' || next=='\n' || next=='\r') return COMMANDS[c];
+		}
+		return null;
+	}
+	
 	public static Command extractCommand(final ByteBuf buf) {
 		if(buf==null) throw new IllegalArgumentException("The passed buffer was null");
 		if(!buf.isReadable()) throw new IllegalArgumentException("The passed buffer was not readable [" + buf + "]");
@@ -93,6 +135,35 @@ public enum Command implements ICommand {
 		}		
 	}
 	
+	/**
+	 * Extracts the <b><code>--request-id=&lt;id&gt;</code></b> option from a request's or response's command line
+	 * @param buf The request or response buffer
+	 * @return the request id or -1 if the response does not have one
+	 */
+	public static long extractRequestId(final ByteBuf buf) {
+		if(buf==null) throw new IllegalArgumentException("The passed buffer was null");
+		final int end = buf.forEachByte(FIND_COLON_OR_LF);
+		if(end==-1) return -1L;
+		final int start = buf.readerIndex();
+		final int optLen = REQUEST_ID.length;
+		outer:
+		for(int i = start; i <= end - optLen; i++) {
+			for(int x = 0; x < optLen; x++) {
+				if(buf.getByte(i + x)!=REQUEST_ID[x]) continue outer;
+			}
+			long id = 0;
+			int digits = 0;
+			for(int d = i + optLen; d < end; d++) {
+				final byte b = buf.getByte(d);
+				if(b < '0' || b > '9') break;
+				id = (id * 10) + (b - '0');
+				digits++;
+			}
+			return digits==0 ? -1L : id;
+		}
+		return -1L;
+	}
+	
 	public static ByteBuf extractPayload(final ByteBuf buf) {
 		if(buf==null) throw new IllegalArgumentException("The passed buffer was null");
 		if(!buf.isReadable()) throw new IllegalArgumentException("The passed buffer was not readable [" + buf + "]");
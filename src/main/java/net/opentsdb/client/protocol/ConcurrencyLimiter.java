@@ -0,0 +1,288 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.protocol;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+
+import net.opentsdb.client.ClientConfiguration;
+import net.opentsdb.client.metrics.HdrReservoir;
+
+/**
+ * <p>Title: ConcurrencyLimiter</p>
+ * <p>Description: An adaptive limit on the number of flushed batches awaiting the server's response. 
+ * Batches are dispatched while fewer than the limit are in flight, queued in order up to a bounded queue size 
+ * beyond that, and shed once the queue is full. Each completed batch releases its permit, dispatching 
+ * queued batches in order. The limit adapts AIMD style, in the style of Netflix concurrency-limits' <code>AIMDLimit</code>:
+ * <ul>
+ * 	<li>A batch that failed, or whose ack round trip exceeded the timeout, multiplies the limit by the backoff ratio.</li>
+ * 	<li>Any other ack while at least half the limit is in use increases the limit by one.</li>
+ * </ul>
+ * Every dispatched batch has an ack deadline of the timeout times <b><code>inflight.deadline</code></b>: a batch still
+ * unanswered by then is failed, which releases its permit as a failure, so an unanswered or mismatched response
+ * cannot leak a permit for as long as the connection stays up.
+ * The limit, in flight count and queue size are published as gauges, the queueing delay as a histogram in nanos, 
+ * and the shed and expired batches as counters.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.protocol.ConcurrencyLimiter</code></p>
+ */
+
+public class ConcurrencyLimiter {
+	/** The default initial limit */
+	public static final int DEFAULT_INITIAL = 4;
+	/** The default minimum limit */
+	public static final int DEFAULT_MIN = 1;
+	/** The default maximum limit */
+	public static final int DEFAULT_MAX = 64;
+	/** The default ack round trip time in ms. beyond which the limit is backed off */
+	public static final long DEFAULT_TIMEOUT = 1000;
+	/** The default backoff ratio */
+	public static final double DEFAULT_BACKOFF = 0.9D;
+	/** The default maximum number of queued batches */
+	public static final int DEFAULT_QUEUE = 16;
+	/** The default ack deadline as a multiple of the timeout */
+	public static final int DEFAULT_DEADLINE = 4;
+
+	/** The minimum limit */
+	protected final int min;
+	/** The maximum limit */
+	protected final int max;
+	/** The ack round trip time in nanos beyond which the limit is backed off */
+	protected final long timeout;
+	/** The backoff ratio */
+	protected final double backoff;
+	/** The maximum number of queued batches */
+	protected final int maxQueue;
+	/** The ack deadline of a dispatched batch in ms. */
+	protected final long ackDeadline;
+	/** The batches waiting for a permit */
+	protected final Deque<Queued> queue = new ArrayDeque<Queued>();
+	/** The queueing delay of dispatched batches in nanos */
+	protected final Histogram queueDelay;
+	/** The number of shed batches */
+	protected final Counter shed;
+	/** The number of batches failed at their ack deadline */
+	protected final Counter expired;
+
+	/** The current limit. Guarded by this */
+	protected double limit;
+	/** The number of batches in flight. Guarded by this */
+	protected int inflight = 0;
+
+	/**
+	 * <p>Title: Queued</p>
+	 * <p>Description: A batch dispatch waiting for a permit</p>
+	 */
+	private static class Queued {
+		final Runnable dispatch;
+		final long queuedNanos = System.nanoTime();
+		Queued(final Runnable dispatch) {
+			this.dispatch = dispatch;
+		}
+	}
+
+	/**
+	 * Creates the concurrency limiter configured for a client
+	 * @param config The client configuration
+	 * @param registry The registry the metrics are published in
+	 * @param refreshPeriod The queueing delay histogram's refresh period in ms.
+	 * @return the limiter, or null if not enabled
+	 */
+	public static ConcurrencyLimiter create(final ClientConfiguration config, final MetricRegistry registry, final long refreshPeriod) {
+		if(!config.custom("inflight.adaptive", Boolean.class, false)) return null;
+		return new ConcurrencyLimiter(
+			config.custom("inflight.initial", Number.class, DEFAULT_INITIAL).intValue(),
+			config.custom("inflight.min", Number.class, DEFAULT_MIN).intValue(),
+			config.custom("inflight.max", Number.class, DEFAULT_MAX).intValue(),
+			config.custom("inflight.timeout", Number.class, DEFAULT_TIMEOUT).longValue(),
+			config.custom("inflight.backoff", Number.class, DEFAULT_BACKOFF).doubleValue(),
+			config.custom("inflight.queue", Number.class, DEFAULT_QUEUE).intValue(),
+			config.custom("inflight.deadline", Number.class, DEFAULT_DEADLINE).intValue(),
+			registry, refreshPeriod
+		);
+	}
+
+	/**
+	 * Creates a new ConcurrencyLimiter
+	 * @param initial The initial limit
+	 * @param min The minimum limit
+	 * @param max The maximum limit
+	 * @param timeout The ack round trip time in ms. beyond which the limit is backed off
+	 * @param backoff The ratio the limit is multiplied by on a failure or timeout
+	 * @param maxQueue The maximum number of batches queued for a permit, 0 to shed as soon as the limit is reached
+	 * @param deadline The ack deadline of a dispatched batch as a multiple of the timeout
+	 * @param registry The registry the metrics are published in
+	 * @param refreshPeriod The queueing delay histogram's refresh period in ms.
+	 */
+	public ConcurrencyLimiter(final int initial, final int min, final int max, final long timeout, final double backoff, final int maxQueue, final int deadline, final MetricRegistry registry, final long refreshPeriod) {
+		if(min < 1 || max < min) throw new IllegalArgumentException("Invalid limit range: " + min + "-" + max);
+		if(timeout < 1) throw new IllegalArgumentException("Invalid timeout: " + timeout);
+		if(backoff <= 0D || backoff >= 1D) throw new IllegalArgumentException("Invalid backoff ratio: " + backoff);
+		if(maxQueue < 0) throw new IllegalArgumentException("Invalid queue size: " + maxQueue);
+		if(deadline < 1) throw new IllegalArgumentException("Invalid deadline multiple: " + deadline);
+		this.min = min;
+		this.max = max;
+		this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+		this.backoff = backoff;
+		this.maxQueue = maxQueue;
+		ackDeadline = timeout * deadline;
+		limit = Math.max(min, Math.min(max, initial));
+		queueDelay = registry.register("inflight.queueDelay", new Histogram(new HdrReservoir(refreshPeriod)));
+		shed = registry.counter("inflight.shed");
+		expired = registry.counter("inflight.expired");
+		registry.register("inflight.limit", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return getLimit();
+			}
+		});
+		registry.register("inflight.count", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return getInflight();
+			}
+		});
+		registry.register("inflight.queued", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return getQueued();
+			}
+		});
+	}
+
+	/**
+	 * Dispatches a batch now if a permit is available, otherwise queues it if the queue is not full.
+	 * Each dispatched batch must be {@link #release(long, boolean) released} exactly once when it completes.
+	 * @param dispatch The batch dispatch
+	 * @return true if the batch was dispatched or queued, false if it was shed
+	 */
+	public boolean submit(final Runnable dispatch) {
+		synchronized(this) {
+			if(inflight >= (int)limit) {
+				if(queue.size() >= maxQueue) {
+					shed.inc();
+					return false;
+				}
+				queue.add(new Queued(dispatch));
+				return true;
+			}
+			inflight++;
+		}
+		queueDelay.update(0L);
+		dispatch.run();
+		return true;
+	}
+
+	/**
+	 * Releases a completed batch's permit, adapts the limit and dispatches queued batches the new limit allows
+	 * @param rtt The batch's ack round trip time in nanos, -1 if not measured
+	 * @param dropped true if the batch failed
+	 */
+	public void release(final long rtt, final boolean dropped) {
+		final List<Queued> ready;
+		synchronized(this) {
+			if(dropped || rtt > timeout) {
+				limit = Math.max(min, limit * backoff);
+			} else if(inflight * 2 >= limit) {
+				limit = Math.min(max, limit + 1);
+			}
+			inflight--;
+			ready = poll(false);
+		}
+		dispatch(ready);
+	}
+
+	/**
+	 * Dispatches all the queued batches regardless of the limit, for when the client closes
+	 */
+	public void drain() {
+		final List<Queued> ready;
+		synchronized(this) {
+			ready = poll(true);
+		}
+		dispatch(ready);
+	}
+
+	private List<Queued> poll(final boolean all) {
+		if(queue.isEmpty()) return null;
+		final List<Queued> ready = new ArrayList<Queued>();
+		while(!queue.isEmpty() && (all || inflight < (int)limit)) {
+			ready.add(queue.poll());
+			inflight++;
+		}
+		return ready;
+	}
+
+	private void dispatch(final List<Queued> ready) {
+		if(ready==null) return;
+		final long now = System.nanoTime();
+		for(Queued q: ready) {
+			queueDelay.update(now - q.queuedNanos);
+			q.dispatch.run();
+		}
+	}
+
+	/**
+	 * Returns the ack deadline of a dispatched batch
+	 * @return the ack deadline in ms.
+	 */
+	public long getAckDeadline() {
+		return ackDeadline;
+	}
+
+	/**
+	 * Counts a batch failed at its ack deadline. Its permit is released by the failure.
+	 */
+	public void expired() {
+		expired.inc();
+	}
+
+	/**
+	 * Returns the current limit
+	 * @return the maximum number of batches in flight
+	 */
+	public synchronized int getLimit() {
+		return (int)limit;
+	}
+
+	/**
+	 * Returns the number of batches in flight
+	 * @return the number of batches in flight
+	 */
+	public synchronized int getInflight() {
+		return inflight;
+	}
+
+	/**
+	 * Returns the number of batches waiting for a permit
+	 * @return the number of queued batches
+	 */
+	public synchronized int getQueued() {
+		return queue.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ConcurrencyLimiter [limit=" + (int)limit + ", inflight=" + inflight + ", queued=" + queue.size() + ", min=" + min + ", max=" + max
+				+ ", timeout=" + TimeUnit.NANOSECONDS.toMillis(timeout) + ", backoff=" + backoff + ", maxQueue=" + maxQueue + ", ackDeadline=" + ackDeadline + "]";
+	}
+}
@@ -0,0 +1,181 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.protocol;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import net.opentsdb.client.buffer.BufferArenaMonitor;
+import net.opentsdb.client.buffer.BufferManager;
+
+/**
+ * <p>Title: SelfReporter</p>
+ * <p>Description: Periodically traces a client's own metrics, and the {@link BufferManager} arena stats,
+ * through the client itself, tagged with the client type, so every client shows up in OpenTSDB without JMX scraping.
+ * Each metric attribute is traced with a {@link SeriesHandle} built on first use and rebuilt if the agent name changes.
+ * The points are sent with the client's next flush. Enabled by setting <b><code>selfreport.interval</code></b> 
+ * to the reporting period in seconds. Reading an {@link net.opentsdb.client.metrics.HdrReservoir HdrReservoir} backed 
+ * histogram does not consume its interval, so self reporting and JMX readers see the same values: those of the last 
+ * complete <b><code>metrics.refresh</code></b> interval.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.protocol.SelfReporter</code></p>
+ */
+
+public class SelfReporter extends ScheduledReporter {
+	/** The default metric name prefix */
+	public static final String DEFAULT_PREFIX = "opentsdb.client";
+
+	private static final Logger log = LoggerFactory.getLogger(SelfReporter.class);
+
+	/** The client reported on and through */
+	protected final BaseClient<?> client;
+	/** The metric name prefix */
+	protected final String prefix;
+	/** The client type tag value */
+	protected final String clientType;
+	/** The series handles keyed by metric name and arena. Confined to the reporter thread */
+	protected final Map<String, SeriesHandle> handles = new HashMap<String, SeriesHandle>();
+	/** The host and app the handles were built for */
+	protected String agentKey = null;
+
+	/**
+	 * Creates a new SelfReporter
+	 * @param client The client to report on and through
+	 * @param prefix The metric name prefix
+	 */
+	public SelfReporter(final BaseClient<?> client, final String prefix) {
+		super(client.getRegistry(), "opentsdb-selfreport", MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS);
+		this.client = client;
+		this.prefix = prefix==null || prefix.trim().isEmpty() ? DEFAULT_PREFIX : prefix.trim();
+		clientType = client.clientConfig.type().replaceAll("[^A-Za-z0-9._/-]", "_");
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.ScheduledReporter#report(java.util.SortedMap, java.util.SortedMap, java.util.SortedMap, java.util.SortedMap, java.util.SortedMap)
+	 */
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void report(final SortedMap<String, Gauge> gauges, final SortedMap<String, Counter> counters,
+			final SortedMap<String, Histogram> histograms, final SortedMap<String, Meter> meters, final SortedMap<String, Timer> timers) {
+		final String key = client.hostName.get() + "/" + client.appName.get();
+		if(!key.equals(agentKey)) {
+			handles.clear();
+			agentKey = key;
+		}
+		final long time = client.time();
+		try {
+			for(Map.Entry<String, Gauge> e: gauges.entrySet()) {
+				final Object value = e.getValue().getValue();
+				if(value instanceof Double || value instanceof Float) {
+					trace(time, e.getKey(), null, ((Number)value).doubleValue());
+				} else if(value instanceof Number) {
+					trace(time, e.getKey(), null, ((Number)value).longValue());
+				} else if(value instanceof Boolean) {
+					trace(time, e.getKey(), null, ((Boolean)value) ? 1L : 0L);
+				}
+			}
+			for(Map.Entry<String, Counter> e: counters.entrySet()) {
+				trace(time, e.getKey() + ".count", null, e.getValue().getCount());
+			}
+			for(Map.Entry<String, Meter> e: meters.entrySet()) {
+				trace(time, e.getKey() + ".count", null, e.getValue().getCount());
+				trace(time, e.getKey() + ".m1", null, convertRate(e.getValue().getOneMinuteRate()));
+			}
+			for(Map.Entry<String, Histogram> e: histograms.entrySet()) {
+				trace(time, e.getKey() + ".count", null, e.getValue().getCount());
+				snapshot(time, e.getKey(), e.getValue().getSnapshot(), false);
+			}
+			for(Map.Entry<String, Timer> e: timers.entrySet()) {
+				trace(time, e.getKey() + ".count", null, e.getValue().getCount());
+				trace(time, e.getKey() + ".m1", null, convertRate(e.getValue().getOneMinuteRate()));
+				snapshot(time, e.getKey(), e.getValue().getSnapshot(), true);
+			}
+			final BufferManager bufferManager = BufferManager.getInstance();
+			arena(time, bufferManager.getDirectMonitor(), "direct");
+			arena(time, bufferManager.getHeapMonitor(), "heap");
+		} catch (Exception ex) {
+			log.warn("Self report failed: {}", ex.toString());
+		}
+	}
+
+	private void snapshot(final long time, final String name, final Snapshot s, final boolean duration) {
+		trace(time, name + ".min", null, duration ? convertDuration(s.getMin()) : s.getMin());
+		trace(time, name + ".max", null, duration ? convertDuration(s.getMax()) : s.getMax());
+		trace(time, name + ".mean", null, duration ? convertDuration(s.getMean()) : s.getMean());
+		trace(time, name + ".p50", null, duration ? convertDuration(s.getMedian()) : s.getMedian());
+		trace(time, name + ".p75", null, duration ? convertDuration(s.get75thPercentile()) : s.get75thPercentile());
+		trace(time, name + ".p95", null, duration ? convertDuration(s.get95thPercentile()) : s.get95thPercentile());
+		trace(time, name + ".p99", null, duration ? convertDuration(s.get99thPercentile()) : s.get99thPercentile());
+		trace(time, name + ".p999", null, duration ? convertDuration(s.get999thPercentile()) : s.get999thPercentile());
+	}
+
+	private void arena(final long time, final BufferArenaMonitor monitor, final String arena) {
+		if(monitor==null) return;
+		trace(time, "buffers.allocations", arena, monitor.getAllocations());
+		trace(time, "buffers.deallocations", arena, monitor.getDeallocations());
+		trace(time, "buffers.activeAllocations", arena, monitor.getActiveAllocations());
+		trace(time, "buffers.chunkSize", arena, monitor.getTotalChunkSize());
+		trace(time, "buffers.chunkUsed", arena, monitor.getChunkUsedBytes());
+		trace(time, "buffers.chunkFree", arena, monitor.getChunkFreeBytes());
+		trace(time, "buffers.chunkUsage", arena, monitor.getChunkUsage());
+	}
+
+	private void trace(final long time, final String name, final String arena, final long value) {
+		final SeriesHandle handle = handle(name, arena);
+		if(handle!=null) handle.trace(time, value);
+	}
+
+	private void trace(final long time, final String name, final String arena, final double value) {
+		final SeriesHandle handle = handle(name, arena);
+		if(handle!=null) handle.trace(time, value);
+	}
+
+	/**
+	 * Returns the series handle for the passed metric name and arena, building it on first use
+	 * @param name The metric name, without the prefix
+	 * @param arena The buffer arena tag value, or null for client metrics
+	 * @return the handle or null if the metric name is not a valid OpenTSDB metric name
+	 */
+	private SeriesHandle handle(final String name, final String arena) {
+		final String key = arena==null ? name : name + "/" + arena;
+		SeriesHandle handle = handles.get(key);
+		if(handle==null && !handles.containsKey(key)) {
+			final Map<Object, Object> tags = new HashMap<Object, Object>(4);
+			tags.put("client", clientType);
+			if(arena!=null) tags.put("arena", arena);
+			try {
+				handle = client.series(prefix + "." + name, tags);
+			} catch (IllegalArgumentException iae) {
+				log.debug("Not reporting metric [{}]: {}", name, iae.getMessage());
+			}
+			handles.put(key, handle);
+		}
+		return handle;
+	}
+}
@@ -0,0 +1,85 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.protocol;
+
+import java.util.Map;
+
+/**
+ * <p>Title: SeriesHandle</p>
+ * <p>Description: A pre-built series: a metric name and tag set validated once, with the client's host and app tags
+ * already applied, so data points can be traced for it repeatedly without cleaning the metric and tags each time.
+ * The host and app tags are captured when the handle is built. Acquired from {@link BaseClient#series(Object, Map)}.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.protocol.SeriesHandle</code></p>
+ */
+
+public class SeriesHandle {
+	/** The client the series is traced with */
+	protected final BaseClient<?> client;
+	/** The validated metric name */
+	protected final String metric;
+	/** The validated, unmodifiable tags */
+	protected final Map<String, String> tags;
+
+	/**
+	 * Creates a new SeriesHandle
+	 * @param client The client the series is traced with
+	 * @param metric The validated metric name
+	 * @param tags The validated, unmodifiable tags
+	 */
+	SeriesHandle(final BaseClient<?> client, final String metric, final Map<String, String> tags) {
+		this.client = client;
+		this.metric = metric;
+		this.tags = tags;
+	}
+
+	/**
+	 * Traces a long value for this series
+	 * @param time The timestamp in the client's time unit
+	 * @param value The value
+	 */
+	public void trace(final long time, final long value) {
+		client.traceSeries(time, this, false, value, 0D);
+	}
+
+	/**
+	 * Traces a double value for this series
+	 * @param time The timestamp in the client's time unit
+	 * @param value The value
+	 */
+	public void trace(final long time, final double value) {
+		client.traceSeries(time, this, true, 0L, value);
+	}
+
+	/**
+	 * Returns the validated metric name
+	 * @return the metric name
+	 */
+	public String getMetric() {
+		return metric;
+	}
+
+	/**
+	 * Returns the validated tags
+	 * @return the unmodifiable tags
+	 */
+	public Map<String, String> getTags() {
+		return tags;
+	}
+
+	@Override
+	public String toString() {
+		return "SeriesHandle [" + metric + ":" + tags + "]";
+	}
+}
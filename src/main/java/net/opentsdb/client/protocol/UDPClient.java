@@ -12,21 +12,38 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.client.protocol;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.OutputStream;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.socket.DatagramPacket;
@@ -34,10 +51,20 @@ import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import io.netty.util.ByteProcessor;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.FastThreadLocal;
 import net.opentsdb.client.ClientConfiguration;
 import net.opentsdb.client.ClientFactory;
 import net.opentsdb.client.buffer.BufferManager;
-import net.opentsdb.client.json.JSONOps;
+import net.opentsdb.client.jfr.ClientEventType;
+import net.opentsdb.client.jfr.ClientEvents;
+import net.opentsdb.client.metrics.CostSampler.Sample;
+import net.opentsdb.client.metrics.FlushStages.Stage;
+import net.opentsdb.client.protocol.udp.OutstandingRequests;
+import net.opentsdb.client.protocol.udp.PresetDictionary;
+import net.opentsdb.client.protocol.udp.PutBatchResponse;
+import net.opentsdb.client.protocol.udp.ResendWindow;
+import net.opentsdb.client.tracing.TraceCodec;
 import net.opentsdb.client.util.ByteBufStringSplitter;
 
 /**
@@ -51,36 +78,122 @@ import net.opentsdb.client.util.ByteBufStringSplitter;
 public class UDPClient extends BaseClient<UDPClient> {
 	/** The tracer buffer's gzip OutputStream */
 	protected GZIPOutputStream gzipOutput = null;
+	/** Indicates if packets are compressed with a gzip stream per packet */
+	protected final boolean gzipStream;
+	/** The preset dictionary packets are compressed with, null if dictionary compression is not enabled */
+	protected final PresetDictionary dictionary;
+	/** The number of packets between dictionary rebuilds and announcements */
+	protected final int dictionaryRefresh;
+	/** The number of packets compressed with the preset dictionary */
+	protected final AtomicLong dictionaryPackets = new AtomicLong(0L);
+	/** The default number of packets between dictionary rebuilds and announcements */
+	public static final int DEFAULT_DICTIONARY_REFRESH = 1024;
+	/** The default number of packets between re-announcements of the active dictionary */
+	public static final int DEFAULT_DICTIONARY_REANNOUNCE = 64;
+	/** The number of packets between re-announcements of the active dictionary */
+	protected final int dictionaryReannounce;
+	/** Indicates if the active dictionary has only been announced once, so losing that announcement loses its packets */
+	protected final AtomicBoolean dictionaryUnconfirmed = new AtomicBoolean(false);
+	/** The number of dictionary announcements sent */
+	protected final Counter dictionaryAnnouncements = registry.counter("udpDictAnnouncements");
+	/** The number of dictionary announcements that failed to send */
+	protected final Counter dictionaryAnnounceFailures = registry.counter("udpDictAnnounceFailures");
+	/** The number of packets deflated with a dictionary that had only been announced once */
+	protected final Counter dictionaryAtRisk = registry.counter("udpDictAtRisk");
 	
-	protected final int MAX_OUTPUT = 2048;
-	protected final int FLUSH_ON = MAX_OUTPUT - 3;
+	/** The default maximum datagram payload size: a 1500 byte ethernet MTU less the IPv4 and UDP headers */
+	public static final int DEFAULT_DATAGRAM_SIZE = 1472;
+	/** The bytes reserved at the end of each packet for the codec tailer */
+	protected static final int TAILER_RESERVE = 3;
+	/** The IPv4 + UDP header overhead */
+	protected static final int IPV4_OVERHEAD = 28;
+	/** The IPv6 + UDP header overhead */
+	protected static final int IPV6_OVERHEAD = 48;
+	
+	/** The maximum datagram payload size */
+	protected final int datagramSize;
+	/** The packet size at which the current packet is sealed and sent */
+	protected final int sealOn;
+	/** The packet headroom below which a gzipped packet is sealed before encoding the next point */
 	protected final int PRE_FLUSH = 128;
+	/** The number of data points in the current packet. Guarded by the spin lock */
+	protected int packetPoints = 0;
+	
+	/** The PUTBATCH command line prefix when request ids are enabled */
+	private static final byte[] PUTBATCH_WITH_ID = "PUTBATCH --send-response --request-id=".getBytes(UTF8);
+	/** The default number of outstanding requests tracked */
+	public static final int DEFAULT_OUTSTANDING = 1024;
+	/** The default time in ms. after which an unanswered request is counted as a suspected loss */
+	public static final long DEFAULT_ACK_TIMEOUT = 5000;
+	/** Indicates if each packet carries a request id */
+	protected final boolean requestIds;
+	/** The request id sequence */
+	protected final AtomicLong nextRequestId = new AtomicLong(0L);
+	/** The current packet's request id. Guarded by the spin lock */
+	protected long packetRequestId = -1L;
+	/** The requests awaiting a response, null if request ids are not enabled */
+	protected final OutstandingRequests outstanding;
+	/** The time in nanos after which an unanswered request is counted as a suspected loss */
+	protected final long ackTimeoutNanos;
+	/** The flushes awaiting the acknowledgement of their packet, keyed by request id */
+	protected final ConcurrentHashMap<Long, PendingFlush> flushWaiters = new ConcurrentHashMap<Long, PendingFlush>();
+	/** The outstanding request expiry schedule handle */
+	protected final ScheduledFuture<?> expiryHandle;
+	/** The round trip time of acknowledged requests */
+	protected final Timer ackRttTimer = registry.timer("udpAckRtt");
+	/** The server side elapsed time of acknowledged requests */
+	protected final Timer serverElapsedTimer = registry.timer("udpServerElapsed");
+	/** The number of responses that did not match an outstanding request */
+	protected final Counter unmatchedResponses = registry.counter("udpUnmatchedResponses");
+	
+	/** The default reliable UDP resend window size in packets */
+	public static final int DEFAULT_WINDOW = 256;
+	/** The default maximum number of times a reliable UDP packet is resent */
+	public static final int DEFAULT_MAX_RETRIES = 5;
+	/** The default period in ms. of the reliable UDP resend check */
+	public static final long DEFAULT_RESEND_TICK = 10;
+	/** The reliable UDP resend window, null if reliable UDP is not enabled */
+	protected final ResendWindow resendWindow;
+	/** The resend check schedule handle */
+	protected final ScheduledFuture<?> resendHandle;
 	private static final String STATS = "STATS:";
 	private final AtomicLong statsCounter = new AtomicLong();
 	private final AtomicLong responseCounter = new AtomicLong();
 	private final InetSocketAddress isa;
 	private final InetSocketAddress localIsa;
 	
+	/** The default number of written packets that triggers an immediate channel flush */
+	public static final int DEFAULT_FLUSH_PACKETS = 16;
+	/** The number of written packets that triggers an immediate channel flush */
+	protected final int flushPackets;
+	/** The senders of each bound datagram socket, the first being the client's primary channel */
+	protected final Sender[] senders;
+	/** The round robin sender index */
+	protected final AtomicInteger nextSender = new AtomicInteger(0);
 	
-	
-	
-	protected final BlockingQueue<Runnable> responseQueue = new ArrayBlockingQueue<Runnable>(1024, true);
-	protected final AtomicBoolean keepRunning = new AtomicBoolean(true);
-	protected final Thread responseQueueThread = new Thread("UDPClientResponseQueueProcessor") {
+	/** The reusable PUTBATCH response holders, one per event loop receiving responses */
+	protected final FastThreadLocal<PutBatchResponse> putBatchResponse = new FastThreadLocal<PutBatchResponse>() {
 		@Override
-		public void run() {			
-			while(keepRunning.get()) {
-				try {
-					final Runnable r = responseQueue.take();
-					r.run();
-				} catch (InterruptedException iex) {
-					if(Thread.interrupted()) Thread.interrupted();
-				} catch (Exception ex) {
-					log.error("Failed to process response", ex);
-				}
-			}
+		protected PutBatchResponse initialValue() throws Exception {
+			return new PutBatchResponse();
 		}
 	};
+	/** The number of responses that could not be decoded */
+	protected final Counter responseRejections = registry.counter("udpResponseRejections");
+	/** The datagram payload sizes in bytes, as sent on the wire */
+	protected final Histogram payloadSize = registry.histogram("udpPayloadSize");
+	/** The datagram payload sizes as a percentage of the maximum datagram payload size */
+	protected final Histogram fillPercent = registry.histogram("udpFillPercent");
+	/** The number of data points per packet */
+	protected final Histogram pointsPerPacket = registry.histogram("udpPointsPerPacket");
+	/** The number of datagrams that failed to send */
+	protected final Counter sendFailures = registry.counter("udpSendFailures");
+	/** The number of unacknowledged reliable UDP packets evicted from a full resend window */
+	protected final Counter windowEvictions = registry.counter("udpWindowEvictions");
+	/** The number of resend window evictions already logged. Only accessed on the event loop */
+	private long loggedEvictions = 0L;
+	/** The number of datagrams written to the channel and not yet sent or failed */
+	protected final AtomicInteger pendingOutbound = new AtomicInteger(0);
 
 	/**
 	 * Creates a new UDPClient
@@ -91,15 +204,175 @@ public class UDPClient extends BaseClient<UDPClient> {
 		//channel.pipeline().addFirst("logger", new LoggingHandler(getClass(), LogLevel.INFO));
 		isa = (InetSocketAddress)socketAddress;
 		localIsa = (InetSocketAddress)channel.localAddress();
-		responseQueueThread.setDaemon(true);
-		responseQueueThread.start();
+		flushPackets = Math.max(1, clientConfiguration.custom("udp.flushpackets", Number.class, DEFAULT_FLUSH_PACKETS).intValue());
+		senders = bindSenders(clientConfiguration);
+		registry.register("udpPendingOutbound", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return pendingOutbound.get();
+			}
+		});
+		if("dictionary".equalsIgnoreCase(clientConfiguration.custom("udp.compression", String.class, "").trim())) {
+			dictionary = new PresetDictionary(
+				clientConfiguration.custom("udp.dictsize", Number.class, PresetDictionary.DEFAULT_MAX_SIZE).intValue(),
+				PresetDictionary.DEFAULT_MAX_TOKENS,
+				PresetDictionary.DEFAULT_SAMPLE_RATE,
+				clientConfiguration.custom("udp.dictlevel", Number.class, Deflater.DEFAULT_COMPRESSION).intValue()
+			);
+			dictionaryRefresh = Math.max(1, clientConfiguration.custom("udp.dictrefresh", Number.class, DEFAULT_DICTIONARY_REFRESH).intValue());
+			dictionaryReannounce = Math.max(1, clientConfiguration.custom("udp.dictannounce", Number.class, DEFAULT_DICTIONARY_REANNOUNCE).intValue());
+			gzipStream = false;
+			log.info("UDP preset dictionary compression enabled");
+		} else {
+			dictionary = null;
+			dictionaryRefresh = 0;
+			dictionaryReannounce = 0;
+			gzipStream = gzipEnabled;
+		}
+		if(clientConfiguration.custom("udp.probemtu", Boolean.class, false)) {
+			datagramSize = probeDatagramSize(isa);
+		} else {
+			datagramSize = clientConfiguration.custom("udp.datagramsize", Number.class, DEFAULT_DATAGRAM_SIZE).intValue();
+		}
+		if(datagramSize <= TAILER_RESERVE + PRE_FLUSH) throw new IllegalArgumentException("Invalid UDP datagram size: " + datagramSize);
+		sealOn = datagramSize - TAILER_RESERVE;
+		requestIds = codec==TraceCodec.TEXT && clientConfiguration.custom("udp.requestids", Boolean.class, true);
+		final boolean reliable = clientConfiguration.custom("udp.reliable", Boolean.class, false);
+		if(requestIds) {
+			outstanding = new OutstandingRequests(clientConfiguration.custom("udp.outstanding", Number.class, DEFAULT_OUTSTANDING).intValue());
+			ackTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(clientConfiguration.custom("udp.acktimeout", Number.class, DEFAULT_ACK_TIMEOUT).longValue());
+			final long period = Math.max(1L, TimeUnit.NANOSECONDS.toMillis(ackTimeoutNanos) / 2);
+			// reliable requests are given up on by the resend window once their retries are exhausted
+			expiryHandle = reliable ? null : channel.eventLoop().scheduleAtFixedRate(new Runnable(){
+				@Override
+				public void run() {
+					final long sentBefore = System.nanoTime() - ackTimeoutNanos;
+					final int expired = outstanding.expire(sentBefore);
+					if(expired > 0) log.debug("{} requests timed out without a response", expired);
+					expireFlushWaiters(sentBefore);
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+			registry.register("udpSuspectedLosses", new Gauge<Long>() {
+				@Override
+				public Long getValue() {
+					return outstanding.getSuspectedLosses();
+				}
+			});
+			registry.register("udpOutstanding", new Gauge<Integer>() {
+				@Override
+				public Integer getValue() {
+					return outstanding.size();
+				}
+			});
+		} else {
+			outstanding = null;
+			ackTimeoutNanos = 0L;
+			expiryHandle = null;
+		}
+		if(reliable) {
+			if(!requestIds) throw new IllegalArgumentException("Reliable UDP requires the TEXT codec with request ids enabled");
+			resendWindow = new ResendWindow(
+				clientConfiguration.custom("udp.window", Number.class, DEFAULT_WINDOW).intValue(),
+				clientConfiguration.custom("udp.maxretries", Number.class, DEFAULT_MAX_RETRIES).intValue(),
+				clientConfiguration.custom("udp.rto.initial", Number.class, ResendWindow.DEFAULT_INITIAL_RTO).longValue(),
+				clientConfiguration.custom("udp.rto.min", Number.class, ResendWindow.DEFAULT_MIN_RTO).longValue(),
+				clientConfiguration.custom("udp.rto.max", Number.class, ResendWindow.DEFAULT_MAX_RTO).longValue()
+			);
+			final long tick = clientConfiguration.custom("udp.resendtick", Number.class, DEFAULT_RESEND_TICK).longValue();
+			resendHandle = channel.eventLoop().scheduleAtFixedRate(new Runnable(){
+				@Override
+				public void run() {
+					resend();
+				}
+			}, tick, tick, TimeUnit.MILLISECONDS);
+			registry.register("udpRetransmits", new Gauge<Long>() {
+				@Override
+				public Long getValue() {
+					return resendWindow.getRetransmits();
+				}
+			});
+			registry.register("udpLost", new Gauge<Long>() {
+				@Override
+				public Long getValue() {
+					return resendWindow.getLost();
+				}
+			});
+			registry.register("udpUnacked", new Gauge<Integer>() {
+				@Override
+				public Integer getValue() {
+					return resendWindow.size();
+				}
+			});
+			registry.register("udpRto", new Gauge<Long>() {
+				@Override
+				public Long getValue() {
+					return resendWindow.getRto();
+				}
+			});
+			log.info("Reliable UDP enabled");
+		} else {
+			resendWindow = null;
+			resendHandle = null;
+		}
+		log.info("UDP datagram payload size: {}", datagramSize);
+	}
+	
+	/**
+	 * Creates the sender for the primary channel and, when <b><code>udpsockets</code></b> is configured on the epoll transport,
+	 * binds the additional datagram channels to the primary channel's port with <code>SO_REUSEPORT</code>. 
+	 * Each channel is registered with the next event loop of the group, and the server's responses
+	 * to any of them are handled by this client.
+	 * @param clientConfiguration The client configuration
+	 * @return the senders
+	 */
+	protected Sender[] bindSenders(final ClientConfiguration clientConfiguration) {
+		final Integer configured = clientConfiguration.socketOptions().udpSockets();
+		int count = configured==null ? 1 : configured.intValue();
+		if(count==0) {
+			for(Iterator<EventExecutor> iter = group.iterator(); iter.hasNext(); iter.next()) count++;
+		}
+		if(count < 0) throw new IllegalArgumentException("Invalid UDP socket count: " + count);
+		if(count > 1 && !clientConfiguration.epoll()) {
+			log.warn("Multiple UDP sockets require the epoll transport, using one");
+			count = 1;
+		}
+		final Sender[] s = new Sender[count];
+		s[0] = new Sender(channel);
+		for(int i = 1; i < count; i++) {
+			final ChannelFuture cf = bootstrap.bind(localIsa);
+			if(!cf.awaitUninterruptibly(5, TimeUnit.SECONDS) || !cf.isSuccess()) {
+				for(int x = 1; x < i; x++) s[x].channel.close();
+				throw new RuntimeException("Failed to bind UDP socket #" + i + " to [" + localIsa + "]", cf.cause());
+			}
+			s[i] = new Sender(cf.channel());
+		}
+		if(count > 1) log.info("Sending on {} UDP sockets bound to [{}]", count, localIsa);
+		return s;
+	}
+	
+	/**
+	 * Returns the next sender in round robin order
+	 * @return the next sender
+	 */
+	protected Sender nextSender() {
+		if(senders.length==1) return senders[0];
+		return senders[(nextSender.getAndIncrement() & Integer.MAX_VALUE) % senders.length];
 	}
 	
 	@Override
 	public void close() {				
-		keepRunning.set(false);
-		responseQueueThread.interrupt();
+		if(expiryHandle!=null) expiryHandle.cancel(false);
+		if(resendHandle!=null) resendHandle.cancel(false);
+		for(int i = 1; i < senders.length; i++) {
+			try { senders[i].channel.close().sync(); } catch (Exception x) {/* No Op */}
+		}
 		super.close();
+		if(resendWindow!=null) resendWindow.clear();
+		for(Iterator<PendingFlush> iter = flushWaiters.values().iterator(); iter.hasNext();) {
+			final PendingFlush pending = iter.next();
+			iter.remove();
+			pending.fail(new ClosedChannelException());
+		}
 	}
 	
 	/**
@@ -108,27 +381,47 @@ public class UDPClient extends BaseClient<UDPClient> {
 	 */
 	@Override
 	protected void writeHeader() {
-		if(gzipEnabled) {
+		if(gzipStream) {
 			if(gzipOutput==null) {
 				try {
-					gzipOutput = new GZIPOutputStream(output, MAX_OUTPUT, true);
-					codec.header(gzipOutput);
+					gzipOutput = new GZIPOutputStream(output, datagramSize, true);
+					writePacketHeader(gzipOutput);
 				} catch (Exception ex) {
 					throw new RuntimeException("Failed to initialize header with gzipped out", ex);
 				}
 			}
 		} else {
-			codec.header(output);
+			writePacketHeader(output);
 		}		
 	}
 	
+	/**
+	 * Writes the packet header. When request ids are enabled, the next request id is assigned to the new packet
+	 * and appended to the <code>PUTBATCH</code> command line.
+	 * @param out The stream to write to
+	 */
+	protected void writePacketHeader(final OutputStream out) {
+		if(!requestIds) {
+			codec.header(out);
+			return;
+		}
+		packetRequestId = nextRequestId.incrementAndGet();
+		try {
+			out.write(PUTBATCH_WITH_ID);
+			out.write(Long.toString(packetRequestId).getBytes(UTF8));
+			out.write('\n');
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed to write packet header", ex);
+		}
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 * @see net.opentsdb.client.protocol.BaseClient#writeTailer()
 	 */
 	@Override
 	protected void writeTailer() {
-		if(gzipEnabled) {
+		if(gzipStream) {
 			codec.tailer(gzipOutput);
 			try {
 				gzipOutput.flush();
@@ -143,68 +436,23 @@ public class UDPClient extends BaseClient<UDPClient> {
 	}
 
 	
-	protected byte[] preEncode(final long time, final String metric, final long value, final Map<String, String> tags) {
-		final ByteArrayOutputStream baos = new ByteArrayOutputStream(PRE_FLUSH); 
-		try {
-			codec.encode(baos, time, metric, value, tags);
-			baos.flush();
-			return baos.toByteArray();
-		} catch (Exception ex) {
-			throw new RuntimeException("Failed to pre-encode long value", ex);
-		} finally {
-			try { baos.close(); } catch (Exception x) {/* No Op */}
-		}
-	}
-	
-	protected byte[] preEncode(final long time, final String metric, final double value, final Map<String, String> tags) {
-		final ByteArrayOutputStream baos = new ByteArrayOutputStream(PRE_FLUSH); 
-		try {
-			codec.encode(baos, time, metric, value, tags);
-			baos.flush();
-			return baos.toByteArray();
-		} catch (Exception ex) {
-			throw new RuntimeException("Failed to pre-encode double value", ex);
-		} finally {
-			try { baos.close(); } catch (Exception x) {/* No Op */}
-		}
-	}
-	
-	
 	/**
 	 * {@inheritDoc}
 	 * @see net.opentsdb.client.protocol.BaseClient#trace(long, java.lang.Object, long, java.util.Map)
 	 */
 	@Override
 	public void trace(final long time, final Object metric, final long value, final Map<Object, Object> tags) {
-		final byte[] encoded;
+		final String cleanedMetric;
+		final Map<String, String> cleanedTags;
 		try {
-			encoded = preEncode(time, cleanMetric(metric), value, cleanTags(tags));
+			cleanedMetric = cleanMetric(metric);
+			cleanedTags = cleanTags(tags);
 		} catch (IllegalArgumentException iae) {
 			invalidTraceCounter.inc();
 			log.debug("Invalid trace: {}:{}", metric, tags);			
 			return;
 		}
-		if(output.writtenBytes() + encoded.length > FLUSH_ON) {
-			flush();
-		}
-		spinLock.doInLock(new Runnable(){
-			@Override
-			public void run() {
-				try {
-					if(gzipEnabled) {
-						gzipOutput.write(encoded);
-						gzipOutput.flush();
-					} else {
-						output.write(encoded);
-					}
-					totalDatapointsSent.increment();
-				} catch (Exception ex) {
-					throw new RuntimeException("Failed to write pre-encode long value", ex);
-				}
-			}
-		});
-		bytesEncoded.add(encoded.length);
-		currentBatchSize.increment();
+		append(time, cleanedMetric, false, value, 0D, cleanedTags);
 	}
 
 	/**
@@ -213,53 +461,370 @@ public class UDPClient extends BaseClient<UDPClient> {
 	 */
 	@Override
 	public void trace(final long time, final Object metric, final double value, final Map<Object, Object> tags) {
-		final byte[] encoded;
+		final String cleanedMetric;
+		final Map<String, String> cleanedTags;
 		try {
-			encoded = preEncode(time, cleanMetric(metric), value, cleanTags(tags));
+			cleanedMetric = cleanMetric(metric);
+			cleanedTags = cleanTags(tags);
 		} catch (IllegalArgumentException iae) {
 			invalidTraceCounter.inc();
 			log.debug("Invalid trace: {}:{}", metric, tags);			
 			return;
 		}
-		if(output.writtenBytes() + encoded.length > FLUSH_ON) {
-			flush();
+		append(time, cleanedMetric, true, 0L, value, cleanedTags);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see net.opentsdb.client.protocol.BaseClient#traceSeries(long, net.opentsdb.client.protocol.SeriesHandle, boolean, long, double)
+	 */
+	@Override
+	protected void traceSeries(final long time, final SeriesHandle series, final boolean isDouble, final long longValue, final double doubleValue) {
+		append(time, series.metric, isDouble, longValue, doubleValue, series.tags);
+	}
+	
+	/**
+	 * Encodes a data point directly into the current packet. If the point does not fit, the packet's writer index
+	 * is rolled back to where the point started, the packet is sealed and handed to the event loop to be sent, 
+	 * and the point is encoded into the fresh packet, so the calling thread never blocks on a send.
+	 * Since packets are only sealed between points, a packet always ends on a line boundary.
+	 * Compressed output cannot be rolled back, so with gzip the packet is sealed up front once 
+	 * less than {@link #PRE_FLUSH} bytes remain.
+	 * @param time The data point timestamp
+	 * @param metric The cleaned metric name
+	 * @param isDouble true if the value is a double, false if it is a long
+	 * @param longValue The long value
+	 * @param doubleValue The double value
+	 * @param tags The cleaned tags
+	 */
+	protected void append(final long time, final String metric, final boolean isDouble, final long longValue, final double doubleValue, final Map<String, String> tags) {
+		final Sample sample = costs==null ? null : costs.begin();
+		if(dictionary!=null) dictionary.record(metric, tags);
+		final long[] encodedBytes = new long[1];
+		final long[] sealedPoints = new long[1];
+		final long start = stages.start();
+		final ByteBuf sealed = spinLock.doInLock(new Callable<ByteBuf>(){
+			@Override
+			public ByteBuf call() throws Exception {
+				stages.stop(Stage.LOCK_WAIT, start);
+				ByteBuf sealedPacket = null;
+				if(gzipStream && packetPoints > 0 && traceBuffer.writerIndex() + PRE_FLUSH > sealOn) {
+					sealedPoints[0] = packetPoints;
+					sealedPacket = swap();
+				}
+				int mark = traceBuffer.writerIndex();
+				try {
+					final long encodeStart = stages.start();
+					encode(time, metric, isDouble, longValue, doubleValue, tags);
+					stages.stop(Stage.ENCODE, encodeStart);
+					if(!gzipStream && packetPoints > 0 && traceBuffer.writerIndex() > sealOn) {
+						traceBuffer.writerIndex(mark);
+						sealedPoints[0] = packetPoints;
+						sealedPacket = swap();
+						mark = traceBuffer.writerIndex();
+						encode(time, metric, isDouble, longValue, doubleValue, tags);
+					}
+				} catch (IllegalArgumentException iae) {
+					if(!gzipStream) traceBuffer.writerIndex(mark);
+					invalidTraceCounter.inc();
+					log.debug("Invalid trace: {}:{}", metric, tags);
+					encodedBytes[0] = -1;
+					return sealedPacket;
+				}
+				encodedBytes[0] = traceBuffer.writerIndex() - mark;
+				traced();
+				packetPoints++;
+				totalDatapointsSent.increment();
+				return sealedPacket;
+			}
+		});
+		if(sealed!=null) currentBatchSize.reset();
+		if(encodedBytes[0] >= 0) currentBatchSize.increment();
+		if(sealed!=null) sendSealed(sealed, sealedPoints[0]);
+		if(sample!=null) costs.endTrace(sample);
+	}
+	
+	/**
+	 * Encodes a data point into the trace output stream, or the gzip stream if gzip is enabled.
+	 * Must be called while holding the spin lock.
+	 * @param time The data point timestamp
+	 * @param metric The cleaned metric name
+	 * @param isDouble true if the value is a double, false if it is a long
+	 * @param longValue The long value
+	 * @param doubleValue The double value
+	 * @param tags The cleaned tags
+	 */
+	protected void encode(final long time, final String metric, final boolean isDouble, final long longValue, final double doubleValue, final Map<String, String> tags) {
+		final OutputStream out = gzipStream ? gzipOutput : output;
+		if(isDouble) {
+			codec.encode(out, time, metric, doubleValue, tags);
+		} else {
+			codec.encode(out, time, metric, longValue, tags);
 		}
-		spinLock.doInLock(new Runnable(){
+		if(gzipStream) {
+			final long start = stages.start();
+			try {
+				gzipOutput.flush();
+				stages.stop(Stage.COMPRESS, start);
+			} catch (Exception ex) {
+				throw new RuntimeException("Failed to flush zip output", ex);
+			}
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>Resets the current packet's data point count and, when request ids are enabled, registers the swapped out
+	 * packet as outstanding and, for reliable UDP, retains it in the resend window. 
+	 * A request's round trip time is measured from when its packet is sealed.</p>
+	 * @see net.opentsdb.client.protocol.BaseClient#swap()
+	 */
+	@Override
+	protected ByteBuf swap() {
+		return spinLock.doInLock(true, new Callable<ByteBuf>(){
+			@Override
+			public ByteBuf call() throws Exception {
+				final long requestId = packetRequestId;
+				final int points = packetPoints;
+				packetPoints = 0;
+				final ByteBuf swapped = UDPClient.super.swap();
+				if(swapped!=null && points > 0) pointsPerPacket.update(points);
+				if(swapped!=null && outstanding!=null) {
+					final long now = System.nanoTime();
+					outstanding.sent(requestId, now, points);
+					if(resendWindow!=null) {
+						final long evicted = resendWindow.add(requestId, swapped.duplicate().retain(), now);
+						if(evicted >= 0) {
+							windowEvictions.inc();
+							channel.eventLoop().execute(new Runnable(){
+								@Override
+								public void run() {
+									lost(evicted, "evicted from the full resend window");
+								}
+							});
+						}
+					}
+				}
+				return swapped;
+			}
+		});
+	}
+	
+	/**
+	 * Hands a sealed packet to the event loop to be sent
+	 * @param sealed The sealed packet
+	 * @param dpoints The number of data points in the packet
+	 */
+	protected void sendSealed(final ByteBuf sealed, final long dpoints) {
+		ClientEvents.emit(ClientEventType.SEAL, clientType, sealed.readableBytes(), dpoints);
+		final Sender sender = nextSender();
+		sender.channel.eventLoop().execute(new Runnable(){
 			@Override
 			public void run() {
-				try {
-					if(gzipEnabled) {
-						gzipOutput.write(encoded);
-						gzipOutput.flush();
-					} else {
-						output.write(encoded);
+				send(sender, sealed).addListener(new ChannelFutureListener() {
+					@Override
+					public void operationComplete(final ChannelFuture f) throws Exception {
+						if(f.isSuccess() && metricsEnabled.get()) {
+							datapointMeter.mark(dpoints);
+						}
 					}
-					totalDatapointsSent.increment();
-				} catch (Exception ex) {
-					throw new RuntimeException("Failed to write pre-encode double value", ex);
+				});
+			}
+		});
+	}
+	
+	/**
+	 * <p>Title: Sender</p>
+	 * <p>Description: A bound datagram channel and the state batching its flushes</p>
+	 */
+	protected class Sender implements Runnable {
+		/** The datagram channel */
+		protected final Channel channel;
+		/** The number of packets written since the last channel flush */
+		protected final AtomicInteger unflushedPackets = new AtomicInteger(0);
+		/** Indicates if a channel flush is scheduled on the event loop */
+		protected final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+		
+		Sender(final Channel channel) {
+			this.channel = channel;
+		}
+		
+		/**
+		 * Flushes the channel now if {@link #flushPackets} packets have been written since the last flush,
+		 * otherwise schedules a flush on the channel's event loop if one is not already scheduled
+		 */
+		protected void written() {
+			if(unflushedPackets.incrementAndGet() >= flushPackets) {
+				unflushedPackets.set(0);
+				channel.flush();
+			} else if(flushScheduled.compareAndSet(false, true)) {
+				channel.eventLoop().execute(this);
+			}
+		}
+		
+		/**
+		 * Flushes all packets written to the channel since the last flush
+		 */
+		@Override
+		public void run() {
+			flushScheduled.set(false);
+			unflushedPackets.set(0);
+			channel.flush();
+		}
+	}
+	
+	/**
+	 * Determines the datagram payload size from the MTU of the local interface routing to the passed address
+	 * @param target The address datagrams will be sent to
+	 * @return the maximum datagram payload size, or {@link #DEFAULT_DATAGRAM_SIZE} if the MTU could not be determined
+	 */
+	public static int probeDatagramSize(final InetSocketAddress target) {
+		DatagramSocket ds = null;
+		try {
+			ds = new DatagramSocket();
+			ds.connect(target);
+			final InetAddress local = ds.getLocalAddress();
+			final NetworkInterface nic = NetworkInterface.getByInetAddress(local);
+			if(nic==null || nic.getMTU() < 1) return DEFAULT_DATAGRAM_SIZE;
+			return nic.getMTU() - (local instanceof Inet6Address ? IPV6_OVERHEAD : IPV4_OVERHEAD);
+		} catch (Exception ex) {
+			return DEFAULT_DATAGRAM_SIZE;
+		} finally {
+			if(ds!=null) try { ds.close(); } catch (Exception x) {/* No Op */}
+		}
+	}
+	
+	/**
+	 * Compresses the passed packet with the preset dictionary. Every {@link #dictionaryRefresh} packets a new dictionary
+	 * is built and announced, and it is only activated once its announcement has been sent, so no packet is deflated 
+	 * with a dictionary the receiver cannot have. The active dictionary is re-announced every {@link #dictionaryReannounce}
+	 * packets, which bounds the packets lost with a lost or reordered announcement to about that many.
+	 * Packets deflated before the first re-announcement of their dictionary are counted as at risk.
+	 * Announcements are written with the sender of the packet, ahead of it, so they leave on the same socket first.
+	 * @param sender The sender the packet will be written with
+	 * @param plain The plain packet
+	 * @return the compressed packet, or the plain packet if it would not shrink
+	 */
+	protected ByteBuf compress(final Sender sender, final ByteBuf plain) {
+		final long n = dictionaryPackets.getAndIncrement();
+		if(n % dictionaryRefresh == 0) {
+			final PresetDictionary.Dictionary candidate = dictionary.build();
+			if(candidate.id!=dictionary.current().id) announce(sender, candidate, true);
+		} else if(n % dictionaryReannounce == 0) {
+			announce(sender, dictionary.current(), false);
+		}
+		final ByteBuf deflated = dictionary.deflate(plain, allocator);
+		if(deflated!=plain && dictionaryUnconfirmed.get()) dictionaryAtRisk.inc();
+		return deflated;
+	}
+	
+	/**
+	 * Writes a dictionary announcement with the passed sender, which flushes it with its batched packets
+	 * @param sender The sender to write the announcement with
+	 * @param dict The dictionary to announce
+	 * @param activate true to activate the dictionary once the announcement has been sent, 
+	 * false if this re-announces the active dictionary
+	 */
+	protected void announce(final Sender sender, final PresetDictionary.Dictionary dict, final boolean activate) {
+		if(dict.id==0) return;
+		dictionaryAnnouncements.inc();
+		final ChannelFuture cf = sender.channel.write(new DatagramPacket(dict.announcement(allocator), isa));
+		sender.written();
+		cf.addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(final ChannelFuture f) throws Exception {
+				if(!f.isSuccess()) {
+					dictionaryAnnounceFailures.inc();
+					log.debug("Failed to announce {}: {}", dict, f.cause().toString());
+				} else if(activate) {
+					dictionaryUnconfirmed.set(true);
+					dictionary.activate(dict);
+					log.debug("Announced and activated {}", dict);
+				} else if(dictionary.current().id==dict.id) {
+					dictionaryUnconfirmed.set(false);
 				}
 			}
 		});
-		bytesEncoded.add(encoded.length);
-		currentBatchSize.increment();
 	}
 	
 	/**
-	 * Sends the accumulated payload
+	 * {@inheritDoc}
+	 * <p>Captures the request id of the packet swapped out for the flush</p>
+	 * @see net.opentsdb.client.protocol.BaseClient#swapForFlush(net.opentsdb.client.protocol.BaseClient.PendingFlush)
+	 */
+	@Override
+	protected ByteBuf swapForFlush(final PendingFlush pending) {
+		return spinLock.doInLock(true, new Callable<ByteBuf>(){
+			@Override
+			public ByteBuf call() throws Exception {
+				if(outstanding!=null) pending.requestId = packetRequestId;
+				return UDPClient.super.swapForFlush(pending);
+			}
+		});
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>Writes the accumulated payload with the next sender. A flush with a request id completes when its packet is
+	 * acknowledged, otherwise when the write completes.</p>
+	 * @see net.opentsdb.client.protocol.BaseClient#send(io.netty.buffer.ByteBuf, net.opentsdb.client.protocol.BaseClient.PendingFlush)
+	 */
+	@Override
+	protected ChannelFuture send(final ByteBuf sendBuffer, final PendingFlush pending) {
+		final Sender sender = nextSender();
+		if(pending!=null) {
+			pending.sent(sender.channel);
+			if(pending.requestId >= 0) flushWaiters.put(pending.requestId, pending);
+		}
+		final ChannelFuture cf = send(sender, sendBuffer);
+		if(pending!=null) {
+			cf.addListener(new ChannelFutureListener() {
+				@Override
+				public void operationComplete(final ChannelFuture f) throws Exception {
+					if(!f.isSuccess()) {
+						if(pending.requestId >= 0) flushWaiters.remove(pending.requestId);
+						pending.fail(f.cause());
+					} else {
+						pending.written();
+						if(pending.requestId < 0) pending.complete(-1L, -1L, -1L);
+					}
+				}
+			});
+		}
+		return cf;
+	}
+	
+	/**
+	 * Writes the accumulated payload to the sender's channel. The channel is flushed once every 
+	 * {@link #flushPackets} packets, or by a flush task scheduled on the event loop, 
+	 * so packets written in the same event loop tick go out with one flush 
+	 * (and one <code>sendmmsg</code> call on the epoll transport).
+	 * @param sender The sender to write with
 	 * @param sendBuffer The accumulated buffer
 	 * @return The write's ChannelFuture
 	 */
-	protected ChannelFuture send(final ByteBuf sendBuffer) {
-		DatagramPacket dp = new DatagramPacket(sendBuffer, isa);
-		final ChannelFuture cf = channel.writeAndFlush(dp);
+	protected ChannelFuture send(final Sender sender, final ByteBuf sendBuffer) {
+		final long start = stages.start();
+		final DatagramPacket dp = new DatagramPacket(dictionary==null ? sendBuffer : compress(sender, sendBuffer), isa);
+		final long written = dictionary==null ? start : stages.stop(Stage.COMPRESS, start);
+		final int wireBytes = dp.content().readableBytes();
+		payloadSize.update(wireBytes);
+		fillPercent.update(wireBytes * 100L / datagramSize);
+		pendingOutbound.incrementAndGet();
+		final ChannelFuture cf = sender.channel.write(dp);
+		sender.written();
 		cf.addListener(new ChannelFutureListener() {
 			@Override
-			public void operationComplete(final ChannelFuture f) throws Exception {				
+			public void operationComplete(final ChannelFuture f) throws Exception {
+				pendingOutbound.decrementAndGet();
 				if(!f.isSuccess()) {
-					throw new RuntimeException("Failed to send UDP datagram", f.cause());
+					sendFailures.inc();
+					ClientEvents.emit(ClientEventType.DROP, clientType, wireBytes, -1L);
+					log.warn("Failed to send UDP datagram", f.cause());
 				} else {
 					sendCounter.inc();
-					bytesSent.update(bytesEncoded.sumThenReset());
+					bytesSent.update(wireBytes);
+					stages.stop(Stage.WRITE, written);
 				}
 			}
 		});
@@ -292,50 +857,145 @@ public class UDPClient extends BaseClient<UDPClient> {
 		log.debug("Sent Stats Request to [{}]", isa);
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 * <p>Decodes the response inline on the event loop and releases it. 
+	 * Stats responses are traced and flushed off the event loop since a flush may wait on a response.</p>
+	 * @see net.opentsdb.client.protocol.BaseClient#onResponse(io.netty.channel.socket.DatagramPacket)
+	 */
 	@Override
 	public void onResponse(final DatagramPacket response) {
-		dropLatch();
-//		response.retain();
-		responseQueue.add(new Runnable(){
-			public void run() {
-				
-				final ByteBuf buf = response.content();
-				final Command cmd = Command.extractCommand(buf);
-//				log.info("Responses: {}, this one: {}", responseCounter.incrementAndGet(), cmd.name());
-				switch(cmd) {
-				case PUTBATCH:
-					
-					final ByteBuf payload = Command.extractPayload(buf);
-					final JsonNode node = JSONOps.parseToNode(payload.toString(UTF8));
-//					log.info("putbatch response: [{}]", node);
-					if(node.has("cause")) {
-						log.error("Trace failure:[{}]", node.get("cause").textValue());
-						traceErrorCounter.inc();
-					} else {
-						if(metricsEnabled.get()) {
-							final long elapsed = node.get("elapsed").asLong();
-							importTimer.update(elapsed, TimeUnit.NANOSECONDS);
-							importAlloc.update(node.get("allocated").asLong());
-							traceErrorCounter.inc(node.get("errors").asLong());
+		try {
+			final ByteBuf buf = response.content();
+			final Command cmd = Command.matchCommand(buf);
+			if(cmd==null) {
+				responseRejections.inc();
+				log.debug("Unrecognized response: [{}]", buf.toString(UTF8));
+				return;
+			}
+			switch(cmd) {
+			case PUTBATCH:
+				onPutBatch(buf);
+				break;
+			case STATS:
+				buf.retain();
+				ForkJoinPool.commonPool().execute(new Runnable(){
+					@Override
+					public void run() {
+						try {
+							onStats(buf);
+						} finally {
+							buf.release();
 						}
 					}
-					break;
-				case STATS:
-					onStats(buf);
-					break;
-				default:
-					log.warn("Unimplemented command handler for [{}]", cmd.name());				
+				});
+				break;
+			default:
+				log.warn("Unimplemented command handler for [{}]", cmd.name());				
+			}
+		} catch (Exception ex) {
+			responseRejections.inc();
+			log.debug("Failed to process response", ex);
+		} finally {
+			ReferenceCountUtil.safeRelease(response);
+		}
+	}
+	
+	/**
+	 * Handles a PUTBATCH response
+	 * @param buf The response content
+	 */
+	protected void onPutBatch(final ByteBuf buf) {
+		final long requestId = outstanding==null ? -1L : Command.extractRequestId(buf);
+		final long rtt = acked(requestId);
+		final PendingFlush pending = requestId < 0 ? null : flushWaiters.remove(requestId);
+		final PutBatchResponse r;
+		try {
+			r = putBatchResponse.get().parse(Command.extractPayload(buf));
+		} catch (RuntimeException ex) {
+			if(pending!=null) pending.fail(ex);
+			throw ex;
+		}
+		if(r.isFailed()) {
+			log.error("Trace failure:[{}]", r.getCause());
+			traceErrorCounter.inc();
+			if(pending!=null) pending.fail(new RuntimeException("Trace failure: " + r.getCause()));
+		} else {
+			if(pending!=null) pending.complete(r.getSuccess(), r.getErrors(), r.getElapsed());
+			if(metricsEnabled.get()) {
+				final long elapsed = r.getElapsed();
+				if(elapsed >= 0) {
+					importTimer.update(elapsed, TimeUnit.NANOSECONDS);
+					if(rtt >= 0) serverElapsedTimer.update(elapsed, TimeUnit.NANOSECONDS);
 				}
-				//ReferenceCountUtil.safeRelease(response);
+				if(rtt >= 0) ackRttTimer.update(rtt, TimeUnit.NANOSECONDS);
+				if(r.getAllocated() >= 0) importAlloc.update(r.getAllocated());
+				traceErrorCounter.inc(r.getErrors());
 			}
-		});
-		
-		 
-		
-//		System.err.println("Response:[" + response.content().toString(UTF8) + "]");
-		
+		}
 	}
 	
+	/**
+	 * Matches a PUTBATCH response to its outstanding request
+	 * @param requestId The response's request id, -1 if it has none
+	 * @return the request's round trip time in nanos or -1 if request ids are not enabled or the response did not match
+	 */
+	protected long acked(final long requestId) {
+		if(outstanding==null) return -1L;
+		final long now = System.nanoTime();
+		if(requestId >= 0 && resendWindow!=null) resendWindow.ack(requestId, now);
+		final long rtt = requestId < 0 ? -1L : outstanding.acked(requestId, now);
+		if(rtt < 0) unmatchedResponses.inc();
+		return rtt;
+	}
+	
+	/**
+	 * Fails the flushes whose packets were sent before the passed time without being acknowledged
+	 * @param sentBefore Flushes sent before this nano timestamp are failed
+	 */
+	protected void expireFlushWaiters(final long sentBefore) {
+		if(flushWaiters.isEmpty()) return;
+		for(Iterator<PendingFlush> iter = flushWaiters.values().iterator(); iter.hasNext();) {
+			final PendingFlush pending = iter.next();
+			if(pending.sentNanos - sentBefore < 0) {
+				iter.remove();
+				pending.fail(new TimeoutException("No response to request id " + pending.requestId));
+			}
+		}
+	}
+	
+	/**
+	 * Gives up on a reliable UDP packet the resend window dropped, emitting a DROP event and failing its flush if it has one
+	 * @param requestId The dropped packet's request id
+	 * @param reason Why the packet was dropped
+	 */
+	protected void lost(final long requestId, final String reason) {
+		ClientEvents.emit(ClientEventType.DROP, clientType, -1L, outstanding.lost(requestId));
+		final PendingFlush pending = flushWaiters.remove(requestId);
+		if(pending!=null) pending.fail(new TimeoutException("Request id " + requestId + " " + reason));
+	}
+	
+	/**
+	 * Resends the reliable UDP packets whose retransmission timeout has expired through the senders in round robin order,
+	 * so retransmits are compressed, announced and flushed like any other packet. Runs on the event loop.
+	 */
+	protected void resend() {
+		final List<ByteBuf> due = new ArrayList<ByteBuf>();
+		final List<Long> dropped = new ArrayList<Long>();
+		if(resendWindow.due(System.nanoTime(), due, dropped) > 0) {
+			log.warn("Dropped {} unacknowledged packets after {} retries", dropped.size(), resendWindow.maxRetries());
+			for(Long requestId: dropped) lost(requestId, "not acknowledged after " + resendWindow.maxRetries() + " retries");
+		}
+		final long evictions = windowEvictions.getCount();
+		if(evictions > loggedEvictions) {
+			log.warn("Resend window full, dropped {} unacknowledged packets", evictions - loggedEvictions);
+			loggedEvictions = evictions;
+		}
+		for(ByteBuf packet: due) {
+			ClientEvents.emit(ClientEventType.RETRY, clientType, packet.readableBytes(), -1L);
+			send(nextSender(), packet);
+		}
+	}
 	
 	protected void onStats(final ByteBuf buf) {		
 		final ByteBufStringSplitter splitter = new ByteBufStringSplitter(buf, ByteProcessor.FIND_CRLF, false, UTF8);
@@ -353,23 +1013,12 @@ public class UDPClient extends BaseClient<UDPClient> {
 			}
 		}
 		log.debug("Traced [{}] Stats", tracedCount);
-		flush();
+		// never wait for the response on the common pool
+		flushAsync();
 		
 	}
 	
 	
-//	protected ByteBuf swap() {
-//		return spinLock.doInLock(new Callable<ByteBuf>(){
-//			@Override
-//			public ByteBuf call() throws Exception {
-//				final ByteBuf swapped = UDPClient.super.swap();
-//				if(gzipEnabled) {
-//					gzipOutput = new GZIPOutputStream(output, MAX_OUTPUT, true);
-//				}
-//				return swapped;
-//			}
-//		});
-//	}
 	
 
 }
@@ -0,0 +1,230 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.protocol.http;
+
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import net.opentsdb.client.json.JSONOps;
+
+/**
+ * <p>Title: PutDetailsResponse</p>
+ * <p>Description: A reusable, single threaded holder for the fields of an <b><code>/api/put?details</code></b> response,
+ * populated with one streaming pass over the JSON payload. <b><code>success</code></b>, <b><code>failed</code></b>,
+ * <b><code>elapsed</code></b> and <b><code>allocated</code></b> are extracted, and the entries of <b><code>errors</code></b>
+ * are handed one at a time to an optional {@link ErrorListener} as they are parsed, so they are never materialized.
+ * An error response's <b><code>error.message</code></b> is captured as the failure cause.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.protocol.http.PutDetailsResponse</code></p>
+ */
+
+public class PutDetailsResponse {
+	/** The number of data points stored, -1 if not present */
+	protected long success = -1L;
+	/** The number of data points that failed, -1 if not present */
+	protected long failed = -1L;
+	/** The server side elapsed time in nanos, -1 if not present */
+	protected long elapsed = -1L;
+	/** The server side allocated bytes, -1 if not present */
+	protected long allocated = -1L;
+	/** The number of entries in <b><code>errors</code></b> */
+	protected long errors = 0L;
+	/** The failure cause, null if the request did not fail */
+	protected String cause = null;
+
+	private static final Charset UTF8 = Charset.forName("UTF8");
+
+	/**
+	 * <p>Title: ErrorListener</p>
+	 * <p>Description: Receives the entries of a put details response's <b><code>errors</code></b> as they are parsed</p>
+	 */
+	public static interface ErrorListener {
+		/**
+		 * Called for each entry of <b><code>errors</code></b>
+		 * @param datapoint A slice of the response holding the raw JSON of the failed data point, 
+		 * or an empty buffer if the entry has none. Only valid for the duration of the call.
+		 * @param error The error message, or null if the entry has none
+		 */
+		public void onError(ByteBuf datapoint, String error);
+	}
+
+	public static void main(String[] args) {
+		final String json = "{\"errors\":[{\"datapoint\":{\"metric\":\"sys.cpu\",\"timestamp\":1,\"value\":\"x\",\"tags\":{\"host\":\"a\"}},\"error\":\"Unable to parse value to a number\"},"
+				+ "{\"datapoint\":{\"metric\":\"\",\"timestamp\":2,\"value\":1,\"tags\":{}},\"error\":\"Metric name was empty\"}],"
+				+ "\"failed\":2,\"success\":40,\"elapsed\":120345,\"allocated\":20480}";
+		final ByteBuf buf = Unpooled.wrappedBuffer(("  " + json).getBytes(UTF8)).skipBytes(2);
+		final PutDetailsResponse r = new PutDetailsResponse().parse(buf, new ErrorListener() {
+			@Override
+			public void onError(final ByteBuf datapoint, final String error) {
+				System.out.println("Error: [" + error + "] on " + datapoint.toString(UTF8));
+			}
+		});
+		System.out.println(r);
+		System.out.println(new PutDetailsResponse().parse(Unpooled.wrappedBuffer("{\"error\":{\"code\":400,\"message\":\"Bad request\"}}".getBytes(UTF8)), null));
+	}
+
+	/**
+	 * Resets this response and populates it from the passed JSON payload. The payload's reader index is not modified.
+	 * @param payload The JSON payload
+	 * @param listener An optional listener for the entries of <b><code>errors</code></b>
+	 * @return this response
+	 */
+	public PutDetailsResponse parse(final ByteBuf payload, final ErrorListener listener) {
+		success = -1L;
+		failed = -1L;
+		elapsed = -1L;
+		allocated = -1L;
+		errors = 0L;
+		cause = null;
+		JsonParser parser = null;
+		try {
+			if(payload.hasArray()) {
+				parser = JSONOps.jfactory.createParser(payload.array(), payload.arrayOffset() + payload.readerIndex(), payload.readableBytes());
+			} else {
+				parser = JSONOps.jfactory.createParser((InputStream)new ByteBufInputStream(payload.duplicate()));
+			}
+			if(parser.nextToken()!=JsonToken.START_OBJECT) throw new IllegalArgumentException("Response is not a JSON object");
+			while(parser.nextToken()==JsonToken.FIELD_NAME) {
+				final String field = parser.getCurrentName();
+				final JsonToken value = parser.nextToken();
+				if("success".equals(field)) {
+					success = parser.getValueAsLong(-1L);
+				} else if("failed".equals(field)) {
+					failed = parser.getValueAsLong(-1L);
+				} else if("elapsed".equals(field)) {
+					elapsed = parser.getValueAsLong(-1L);
+				} else if("allocated".equals(field)) {
+					allocated = parser.getValueAsLong(-1L);
+				} else if("errors".equals(field) && value==JsonToken.START_ARRAY) {
+					while(parser.nextToken()!=JsonToken.END_ARRAY) {
+						errors++;
+						if(listener!=null && parser.getCurrentToken()==JsonToken.START_OBJECT) {
+							error(parser, payload, listener);
+						} else {
+							parser.skipChildren();
+						}
+					}
+				} else if("error".equals(field) && value==JsonToken.START_OBJECT) {
+					while(parser.nextToken()==JsonToken.FIELD_NAME) {
+						final String name = parser.getCurrentName();
+						parser.nextToken();
+						if("message".equals(name)) cause = parser.getValueAsString();
+						else parser.skipChildren();
+					}
+					if(cause==null) cause = "Unknown error";
+				} else {
+					parser.skipChildren();
+				}
+			}
+			return this;
+		} catch (IllegalArgumentException iae) {
+			throw iae;
+		} catch (Exception ex) {
+			throw new IllegalArgumentException("Failed to parse put details response", ex);
+		} finally {
+			if(parser!=null) try { parser.close(); } catch (Exception x) {/* No Op */}
+		}
+	}
+
+	/**
+	 * Parses one entry of <b><code>errors</code></b>, with the parser positioned on its start, and passes it to the listener
+	 */
+	private static void error(final JsonParser parser, final ByteBuf payload, final ErrorListener listener) throws Exception {
+		ByteBuf datapoint = Unpooled.EMPTY_BUFFER;
+		String error = null;
+		while(parser.nextToken()==JsonToken.FIELD_NAME) {
+			final String name = parser.getCurrentName();
+			final JsonToken value = parser.nextToken();
+			if("datapoint".equals(name) && value==JsonToken.START_OBJECT) {
+				final int start = (int)parser.getTokenLocation().getByteOffset();
+				parser.skipChildren();
+				final int end = (int)parser.getCurrentLocation().getByteOffset();
+				datapoint = payload.slice(payload.readerIndex() + start, end - start);
+			} else if("error".equals(name)) {
+				error = parser.getValueAsString();
+			} else {
+				parser.skipChildren();
+			}
+		}
+		listener.onError(datapoint, error);
+	}
+
+	/**
+	 * Returns the number of data points stored
+	 * @return the number of data points stored or -1 if not present
+	 */
+	public long getSuccess() {
+		return success;
+	}
+
+	/**
+	 * Returns the number of data points that failed
+	 * @return the number of failed data points or -1 if not present
+	 */
+	public long getFailed() {
+		return failed;
+	}
+
+	/**
+	 * Returns the server side elapsed time in nanos
+	 * @return the elapsed time or -1 if not present
+	 */
+	public long getElapsed() {
+		return elapsed;
+	}
+
+	/**
+	 * Returns the server side allocated bytes
+	 * @return the allocated bytes or -1 if not present
+	 */
+	public long getAllocated() {
+		return allocated;
+	}
+
+	/**
+	 * Returns the number of entries in <b><code>errors</code></b>
+	 * @return the number of errors
+	 */
+	public long getErrors() {
+		return errors;
+	}
+
+	/**
+	 * Returns the failure cause
+	 * @return the failure cause or null if the request did not fail
+	 */
+	public String getCause() {
+		return cause;
+	}
+
+	/**
+	 * Indicates if the request failed
+	 * @return true if the request failed
+	 */
+	public boolean isFailed() {
+		return cause!=null;
+	}
+
+	@Override
+	public String toString() {
+		return "PutDetailsResponse [success=" + success + ", failed=" + failed + ", elapsed=" + elapsed
+				+ ", allocated=" + allocated + ", errors=" + errors + ", cause=" + cause + "]";
+	}
+}
@@ -0,0 +1,233 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.protocol.http;
+
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.RateLimiter;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * <p>Title: PutFailureHandler</p>
+ * <p>Description: Sorts the data points rejected in an <b><code>/api/put?details</code></b> response into retryable
+ * failures, such as storage timeouts, which are traced again into the next batch, and permanent failures, which are
+ * handed to a rate limited {@link QuarantineListener}. A failure is retryable if its error message contains
+ * one of the configured patterns, case insensitive.</p>
+ * <p>Each data point is retried at most a configured number of times and quarantined once its attempts are exhausted,
+ * so a sustained storage outage cannot re-trace the same points into every batch forever. Attempts are counted
+ * per data point, keyed by the JSON the server echoes, in a bounded table whose entries expire after a TTL. 
+ * A point evicted from a full table or expired starts over with a fresh budget. Single threaded: used on the event loop only.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.protocol.http.PutFailureHandler</code></p>
+ */
+
+public class PutFailureHandler implements PutDetailsResponse.ErrorListener {
+	/** The default comma separated error message patterns of retryable failures */
+	public static final String DEFAULT_RETRYABLE = "timeout,timed out,hbase,pleasethrottle,storage,region,rpc,unavailable";
+	/** The default maximum number of data points retried per response */
+	public static final int DEFAULT_MAX_RETRIES = 1000;
+	/** The default maximum number of times one data point is retried */
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+	/** The default time in ms. a data point's retry attempts are remembered */
+	public static final long DEFAULT_ATTEMPT_TTL = 300000;
+	/** The maximum number of data points whose retry attempts are tracked */
+	public static final int MAX_TRACKED = 16384;
+	/** The default maximum number of quarantined data points delivered to the listener per second */
+	public static final double DEFAULT_QUARANTINE_RATE = 10;
+
+	private static final Charset UTF8 = Charset.forName("UTF8");
+	private static final Logger log = LoggerFactory.getLogger(PutFailureHandler.class);
+
+	/** The default listener, which logs quarantined data points */
+	public static final QuarantineListener LOGGING_LISTENER = new QuarantineListener() {
+		@Override
+		public void onQuarantine(final String datapoint, final String error) {
+			log.warn("Quarantined data point [{}]: {}", datapoint, error);
+		}
+	};
+
+	/** The lower case error message patterns of retryable failures */
+	protected final String[] retryable;
+	/** The maximum number of data points retried per response */
+	protected final int maxRetries;
+	/** Traces a retried data point's raw JSON into the next batch */
+	protected final Consumer<String> retracer;
+	/** Limits the rate quarantined data points are delivered to the listener */
+	protected final RateLimiter quarantineLimiter;
+	/** The quarantine listener */
+	protected volatile QuarantineListener listener = LOGGING_LISTENER;
+	/** The number of data points retried in the current response */
+	protected int retries = 0;
+	/** The maximum number of times one data point is retried */
+	protected final int maxAttempts;
+	/** The time in nanos a data point's retry attempts are remembered */
+	protected final long attemptTtl;
+	/** The retry attempts and first failure nano time of recently failed data points, keyed by their JSON, eldest first */
+	protected final Map<String, long[]> attempts = new LinkedHashMap<String, long[]>(1024, 0.75f, false) {
+		private static final long serialVersionUID = 5047771232745829610L;
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, long[]> eldest) {
+			return size() > MAX_TRACKED;
+		}
+	};
+
+	/** The number of retried data points */
+	protected final Counter retried;
+	/** The number of quarantined data points */
+	protected final Counter quarantined;
+	/** The number of quarantined data points not delivered to the listener because of the rate limit */
+	protected final Counter quarantineDropped;
+	/** The number of data points quarantined because their retry attempts were exhausted */
+	protected final Counter retryExhausted;
+
+	/**
+	 * Creates a new PutFailureHandler
+	 * @param retryable The comma separated error message patterns of retryable failures
+	 * @param maxRetries The maximum number of data points retried per response
+	 * @param maxAttempts The maximum number of times one data point is retried
+	 * @param attemptTtl The time in ms. a data point's retry attempts are remembered
+	 * @param quarantineRate The maximum number of quarantined data points delivered to the listener per second
+	 * @param retracer Traces a retried data point's raw JSON into the next batch
+	 * @param registry The registry to register this handler's counters with
+	 */
+	public PutFailureHandler(final String retryable, final int maxRetries, final int maxAttempts, final long attemptTtl, final double quarantineRate, final Consumer<String> retracer, final MetricRegistry registry) {
+		if(retracer==null) throw new IllegalArgumentException("The passed retracer was null");
+		if(quarantineRate <= 0) throw new IllegalArgumentException("Invalid quarantine rate: " + quarantineRate);
+		if(maxAttempts < 0) throw new IllegalArgumentException("Invalid max attempts: " + maxAttempts);
+		if(attemptTtl < 1) throw new IllegalArgumentException("Invalid attempt TTL: " + attemptTtl);
+		final String[] patterns = retryable==null ? new String[0] : retryable.trim().toLowerCase().split("\\s*,\\s*");
+		int count = 0;
+		for(String p: patterns) if(!p.isEmpty()) patterns[count++] = p;
+		this.retryable = new String[count];
+		System.arraycopy(patterns, 0, this.retryable, 0, count);
+		this.maxRetries = maxRetries;
+		this.maxAttempts = maxAttempts;
+		this.attemptTtl = TimeUnit.MILLISECONDS.toNanos(attemptTtl);
+		this.retracer = retracer;
+		quarantineLimiter = RateLimiter.create(quarantineRate);
+		retried = registry.counter("putRetried");
+		quarantined = registry.counter("putQuarantined");
+		quarantineDropped = registry.counter("putQuarantineDropped");
+		retryExhausted = registry.counter("putRetryExhausted");
+	}
+
+	/**
+	 * Resets the per response retry budget
+	 * @return this handler
+	 */
+	public PutFailureHandler begin() {
+		retries = 0;
+		return this;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see net.opentsdb.client.protocol.http.PutDetailsResponse.ErrorListener#onError(io.netty.buffer.ByteBuf, java.lang.String)
+	 */
+	@Override
+	public void onError(final ByteBuf datapoint, final String error) {
+		if(!datapoint.isReadable()) {
+			quarantine("", error);
+			return;
+		}
+		final String json = datapoint.toString(UTF8);
+		if(retries < maxRetries && isRetryable(error)) {
+			if(attempt(json) > maxAttempts) {
+				attempts.remove(json);
+				retryExhausted.inc();
+				quarantine(json, "Retries exhausted after " + maxAttempts + " attempts: " + error);
+				return;
+			}
+			retries++;
+			retracer.accept(json);
+			retried.inc();
+		} else {
+			quarantine(json, error);
+		}
+	}
+
+	/**
+	 * Records a retryable failure of the passed data point, expiring the attempts of data points that first failed
+	 * longer than the TTL ago
+	 * @param json The data point's JSON
+	 * @return the number of times the data point has failed, including this failure
+	 */
+	private long attempt(final String json) {
+		final long now = System.nanoTime();
+		for(Iterator<long[]> iter = attempts.values().iterator(); iter.hasNext();) {
+			if(now - iter.next()[1] < attemptTtl) break;
+			iter.remove();
+		}
+		long[] a = attempts.get(json);
+		if(a==null) {
+			a = new long[]{0L, now};
+			attempts.put(json, a);
+		}
+		return ++a[0];
+	}
+
+	/**
+	 * Returns the number of data points retried in the current response
+	 * @return the number of retried data points
+	 */
+	public int getRetries() {
+		return retries;
+	}
+
+	/**
+	 * Indicates if a failure with the passed error message should be retried
+	 * @param error The error message
+	 * @return true if the failure is retryable
+	 */
+	public boolean isRetryable(final String error) {
+		if(error==null) return false;
+		final String lower = error.toLowerCase();
+		for(String pattern: retryable) {
+			if(lower.contains(pattern)) return true;
+		}
+		return false;
+	}
+
+	private void quarantine(final String json, final String error) {
+		quarantined.inc();
+		if(!quarantineLimiter.tryAcquire()) {
+			quarantineDropped.inc();
+			return;
+		}
+		try {
+			listener.onQuarantine(json, error);
+		} catch (Exception ex) {
+			log.warn("Quarantine listener failed: {}", ex.toString());
+		}
+	}
+
+	/**
+	 * Sets the quarantine listener
+	 * @param listener The listener, or null to restore the logging listener
+	 */
+	public void setListener(final QuarantineListener listener) {
+		this.listener = listener==null ? LOGGING_LISTENER : listener;
+	}
+}
@@ -0,0 +1,31 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.protocol.http;
+
+/**
+ * <p>Title: QuarantineListener</p>
+ * <p>Description: Receives the data points the server rejected with a permanent error, such as an unknown metric
+ * or an illegal tag, which are not retried. Called on the event loop, so implementations must not block.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.protocol.http.QuarantineListener</code></p>
+ */
+
+public interface QuarantineListener {
+	/**
+	 * Called for each quarantined data point
+	 * @param datapoint The raw JSON of the rejected data point as reported by the server
+	 * @param error The server's error message, or null if none was reported
+	 */
+	public void onQuarantine(String datapoint, String error);
+}
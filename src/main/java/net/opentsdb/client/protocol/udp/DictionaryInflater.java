@@ -0,0 +1,159 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.protocol.udp;
+
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.ByteProcessor;
+
+/**
+ * <p>Title: DictionaryInflater</p>
+ * <p>Description: Receiver side decoder for packets compressed by {@link PresetDictionary}.
+ * Dictionary announcements are retained (the most recent {@link #MAX_DICTIONARIES}) and consumed,
+ * compressed packets are inflated, and any other packet is passed through.
+ * Compressed packets referencing a dictionary that has not been received yet are dropped and counted,
+ * since the announcement may be lost or reordered like any other datagram.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.protocol.udp.DictionaryInflater</code></p>
+ */
+
+public class DictionaryInflater {
+	/** The number of dictionaries retained */
+	public static final int MAX_DICTIONARIES = 16;
+
+	private static final Charset UTF8 = Charset.forName("UTF8");
+	private static final byte[] DEFLATE = (PresetDictionary.DEFLATE + " ").getBytes(UTF8);
+	private static final byte[] DICTIONARY = (PresetDictionary.DICTIONARY + " ").getBytes(UTF8);
+
+	/** The per thread inflaters */
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+	/** The per thread scratch arrays */
+	private static final ThreadLocal<byte[][]> scratch = new ThreadLocal<byte[][]>() {
+		@Override
+		protected byte[][] initialValue() {
+			return new byte[][] {new byte[PresetDictionary.MAX_PACKET], new byte[PresetDictionary.MAX_PACKET]};
+		}
+	};
+
+	/** The received dictionaries keyed by id */
+	protected final Map<Integer, byte[]> dictionaries = new LinkedHashMap<Integer, byte[]>(MAX_DICTIONARIES * 2, 0.75f, true) {
+		private static final long serialVersionUID = 3046962612302416047L;
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<Integer, byte[]> eldest) {
+			return size() > MAX_DICTIONARIES;
+		}
+	};
+	/** The number of packets dropped because their dictionary was unknown */
+	protected final AtomicLong unknownDictionary = new AtomicLong(0L);
+	/** The number of packets inflated */
+	protected final AtomicLong inflated = new AtomicLong(0L);
+
+	/**
+	 * Creates a new DictionaryInflater
+	 */
+	public DictionaryInflater() {
+		dictionaries.put(0, new byte[0]);
+	}
+
+	/**
+	 * Decodes the passed datagram payload. The passed buffer is not released.
+	 * @param datagram The received datagram payload
+	 * @param alloc The allocator to allocate inflated payloads with
+	 * @return the plain payload, which must be released by the caller, or null if the datagram was
+	 * a dictionary announcement or referenced an unknown dictionary
+	 */
+	public ByteBuf decode(final ByteBuf datagram, final ByteBufAllocator alloc) {
+		final int start = datagram.readerIndex();
+		final boolean deflated = startsWith(datagram, DEFLATE);
+		final boolean announcement = !deflated && startsWith(datagram, DICTIONARY);
+		if(!deflated && !announcement) return datagram.retainedSlice();
+		final int eol = datagram.forEachByte(ByteProcessor.FIND_LF);
+		if(eol==-1) throw new IllegalArgumentException("Malformed " + (deflated ? "DEFLATE" : "DICTIONARY") + " header");
+		final int prefix = deflated ? DEFLATE.length : DICTIONARY.length;
+		final int id = (int)Long.parseLong(datagram.toString(start + prefix, eol - start - prefix, UTF8).trim(), 16);
+		final int bodyStart = eol + 1;
+		final int bodyLength = datagram.writerIndex() - bodyStart;
+		if(announcement) {
+			final byte[] dict = new byte[bodyLength];
+			datagram.getBytes(bodyStart, dict);
+			synchronized(dictionaries) {
+				dictionaries.put(id, dict);
+			}
+			return null;
+		}
+		final byte[] dict;
+		synchronized(dictionaries) {
+			dict = dictionaries.get(id);
+		}
+		if(dict==null) {
+			unknownDictionary.incrementAndGet();
+			return null;
+		}
+		final byte[][] arrays = scratch.get();
+		final Inflater inflater = inflaters.get();
+		inflater.reset();
+		if(dict.length > 0) inflater.setDictionary(dict);
+		datagram.getBytes(bodyStart, arrays[0], 0, bodyLength);
+		inflater.setInput(arrays[0], 0, bodyLength);
+		final ByteBuf out = alloc.buffer(bodyLength * 4);
+		try {
+			while(!inflater.finished()) {
+				final int n = inflater.inflate(arrays[1]);
+				if(n==0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				out.writeBytes(arrays[1], 0, n);
+			}
+		} catch (Exception ex) {
+			out.release();
+			throw new RuntimeException("Failed to inflate packet with dictionary [" + Integer.toHexString(id) + "]", ex);
+		}
+		inflated.incrementAndGet();
+		return out;
+	}
+
+	/**
+	 * Returns the number of packets dropped because their dictionary was unknown
+	 * @return the number of dropped packets
+	 */
+	public long getUnknownDictionaryCount() {
+		return unknownDictionary.get();
+	}
+
+	/**
+	 * Returns the number of packets inflated
+	 * @return the number of inflated packets
+	 */
+	public long getInflatedCount() {
+		return inflated.get();
+	}
+
+	private static boolean startsWith(final ByteBuf buf, final byte[] prefix) {
+		if(buf.readableBytes() < prefix.length) return false;
+		final int start = buf.readerIndex();
+		for(int i = 0; i < prefix.length; i++) {
+			if(buf.getByte(start + i)!=prefix[i]) return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,157 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.protocol.udp;
+
+import java.util.Arrays;
+
+/**
+ * <p>Title: OutstandingRequests</p>
+ * <p>Description: A fixed size, open addressed table of the UDP requests awaiting a response,
+ * recording each request's send time and data point count. Request ids are monotonically increasing, so a request's
+ * slot is its id masked by the table size and a collision can only be with a request sent at least
+ * a full table earlier, which is evicted and counted as a suspected loss.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.protocol.udp.OutstandingRequests</code></p>
+ */
+
+public class OutstandingRequests {
+	/** The marker for an empty slot */
+	public static final long EMPTY = -1L;
+
+	/** The outstanding request ids */
+	private final long[] ids;
+	/** The send timestamps in nanos */
+	private final long[] sendTimes;
+	/** The data point counts */
+	private final int[] points;
+	/** The slot mask */
+	private final int mask;
+	/** The number of outstanding requests */
+	private int size = 0;
+	/** The number of requests evicted or expired without a response */
+	private long suspectedLosses = 0;
+
+	/**
+	 * Creates a new OutstandingRequests
+	 * @param capacity The table capacity, rounded up to the next power of 2
+	 */
+	public OutstandingRequests(final int capacity) {
+		if(capacity < 1) throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		final int cap = Integer.highestOneBit(capacity - 1) << 1;
+		ids = new long[Math.max(cap, 1)];
+		sendTimes = new long[ids.length];
+		points = new int[ids.length];
+		mask = ids.length - 1;
+		Arrays.fill(ids, EMPTY);
+	}
+
+	/**
+	 * Registers a sent request
+	 * @param id The request id
+	 * @param sendTime The send timestamp in nanos
+	 * @param dataPoints The number of data points in the request
+	 */
+	public synchronized void sent(final long id, final long sendTime, final int dataPoints) {
+		final int slot = (int)(id & mask);
+		if(ids[slot]!=EMPTY) {
+			suspectedLosses++;
+			size--;
+		}
+		ids[slot] = id;
+		sendTimes[slot] = sendTime;
+		points[slot] = dataPoints;
+		size++;
+	}
+
+	/**
+	 * Removes the request with the passed id on receipt of its response
+	 * @param id The request id
+	 * @param now The current timestamp in nanos
+	 * @return the request's round trip time in nanos, or -1 if the request is not outstanding
+	 */
+	public synchronized long acked(final long id, final long now) {
+		final int slot = (int)(id & mask);
+		if(ids[slot]!=id) return -1L;
+		ids[slot] = EMPTY;
+		size--;
+		return now - sendTimes[slot];
+	}
+
+	/**
+	 * Removes a request the caller gave up on, counting it as a suspected loss
+	 * @param id The request id
+	 * @return the request's data point count or -1 if the request is not outstanding
+	 */
+	public synchronized int lost(final long id) {
+		final int slot = (int)(id & mask);
+		if(ids[slot]!=id) return -1;
+		ids[slot] = EMPTY;
+		size--;
+		suspectedLosses++;
+		return points[slot];
+	}
+
+	/**
+	 * Returns the data point count of an outstanding request
+	 * @param id The request id
+	 * @return the data point count or -1 if the request is not outstanding
+	 */
+	public synchronized int points(final long id) {
+		final int slot = (int)(id & mask);
+		return ids[slot]==id ? points[slot] : -1;
+	}
+
+	/**
+	 * Expires requests sent before the passed timestamp, counting them as suspected losses
+	 * @param sentBefore Requests sent before this nano timestamp are expired
+	 * @return the number of expired requests
+	 */
+	public synchronized int expire(final long sentBefore) {
+		if(size==0) return 0;
+		int expired = 0;
+		for(int i = 0; i < ids.length; i++) {
+			if(ids[i]!=EMPTY && sendTimes[i] - sentBefore < 0) {
+				ids[i] = EMPTY;
+				expired++;
+			}
+		}
+		size -= expired;
+		suspectedLosses += expired;
+		return expired;
+	}
+
+	/**
+	 * Returns the number of outstanding requests
+	 * @return the number of outstanding requests
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of requests evicted or expired without a response
+	 * @return the number of suspected losses
+	 */
+	public synchronized long getSuspectedLosses() {
+		return suspectedLosses;
+	}
+
+	/**
+	 * Returns the table capacity
+	 * @return the table capacity
+	 */
+	public int capacity() {
+		return ids.length;
+	}
+}
@@ -0,0 +1,367 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.protocol.udp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+/**
+ * <p>Title: PresetDictionary</p>
+ * <p>Description: Raw deflate compression of small UDP payloads primed with a preset dictionary built from recently
+ * seen metric names and tag pairs. Each compressing thread reuses one pooled {@link Deflater} and scratch arrays,
+ * so compressing a packet allocates nothing but the output buffer.</p>
+ * <p>Wire format:<ul>
+ * 	<li>Compressed packet: <b><code>DEFLATE &lt;dictionary id&gt;\n</code></b> followed by the raw deflate frame of the plain packet</li>
+ * 	<li>Dictionary announcement: <b><code>DICTIONARY &lt;dictionary id&gt;\n</code></b> followed by the dictionary bytes</li>
+ * </ul>
+ * The dictionary id is the hex Adler32 of the dictionary bytes, or <code>0</code> for no dictionary.
+ * Packets that would not shrink are sent plain. See {@link DictionaryInflater} for the receiving side.</p>
+ * <p>A receiver drops packets deflated with a dictionary it has not received, so a sender should {@link #build() build} 
+ * a new dictionary, send its announcement, and only {@link #activate(Dictionary) activate} it once the announcement 
+ * has been sent, continuing to deflate with the previous dictionary in the meantime.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.protocol.udp.PresetDictionary</code></p>
+ */
+
+public class PresetDictionary {
+	/** The command prefixing a dictionary compressed packet */
+	public static final String DEFLATE = "DEFLATE";
+	/** The command prefixing a dictionary announcement */
+	public static final String DICTIONARY = "DICTIONARY";
+	/** The default maximum dictionary size in bytes */
+	public static final int DEFAULT_MAX_SIZE = 4096;
+	/** The default maximum number of recently seen tokens retained */
+	public static final int DEFAULT_MAX_TOKENS = 1024;
+	/** The default token sampling rate: one in this many recorded data points is sampled */
+	public static final int DEFAULT_SAMPLE_RATE = 8;
+	/** The maximum plain packet size that can be compressed */
+	public static final int MAX_PACKET = 65536;
+
+	/** An empty dictionary */
+	public static final Dictionary EMPTY = new Dictionary(new byte[0]);
+
+	private static final Charset UTF8 = Charset.forName("UTF8");
+
+	/** The per thread compression state */
+	private static final ThreadLocal<DeflateState> states = new ThreadLocal<DeflateState>();
+
+	/** The maximum dictionary size in bytes */
+	protected final int maxSize;
+	/** The compression level */
+	protected final int level;
+	/** The token sampling rate */
+	protected final int sampleRate;
+	/** Recently seen tokens, eldest first */
+	protected final LinkedHashMap<String, Boolean> tokens;
+	/** The dictionary currently in use */
+	protected volatile Dictionary current = EMPTY;
+
+	/**
+	 * <p>Title: Dictionary</p>
+	 * <p>Description: An immutable preset dictionary and its id</p>
+	 */
+	public static class Dictionary {
+		/** The dictionary id */
+		public final int id;
+		/** The dictionary id as sent on the wire */
+		public final String hexId;
+		/** The dictionary bytes */
+		final byte[] bytes;
+
+		Dictionary(final byte[] bytes) {
+			this.bytes = bytes;
+			if(bytes.length==0) {
+				id = 0;
+			} else {
+				final Adler32 adler = new Adler32();
+				adler.update(bytes, 0, bytes.length);
+				id = (int)adler.getValue();
+			}
+			hexId = Integer.toHexString(id);
+		}
+
+		/**
+		 * Returns the dictionary size in bytes
+		 * @return the dictionary size
+		 */
+		public int size() {
+			return bytes.length;
+		}
+
+		/**
+		 * Creates the announcement datagram payload for this dictionary
+		 * @param alloc The allocator to allocate the payload with
+		 * @return the announcement payload
+		 */
+		public ByteBuf announcement(final ByteBufAllocator alloc) {
+			final ByteBuf buf = alloc.buffer(DICTIONARY.length() + hexId.length() + 2 + bytes.length);
+			buf.writeCharSequence(DICTIONARY, UTF8);
+			buf.writeByte(' ');
+			buf.writeCharSequence(hexId, UTF8);
+			buf.writeByte('\n');
+			buf.writeBytes(bytes);
+			return buf;
+		}
+
+		@Override
+		public String toString() {
+			return "Dictionary [id=" + hexId + ", size=" + bytes.length + "]";
+		}
+	}
+
+	/**
+	 * <p>Title: DeflateState</p>
+	 * <p>Description: A thread's pooled deflater and scratch arrays</p>
+	 */
+	private static class DeflateState {
+		final Deflater deflater;
+		final int level;
+		final byte[] in = new byte[MAX_PACKET];
+		final byte[] out = new byte[MAX_PACKET + 1024];
+		DeflateState(final int level) {
+			this.level = level;
+			deflater = new Deflater(level, true);
+		}
+	}
+
+	/**
+	 * Creates a new PresetDictionary
+	 * @param maxSize The maximum dictionary size in bytes
+	 * @param maxTokens The maximum number of recently seen tokens retained
+	 * @param sampleRate One in this many recorded data points is sampled
+	 * @param level The deflate compression level
+	 */
+	public PresetDictionary(final int maxSize, final int maxTokens, final int sampleRate, final int level) {
+		if(maxSize < 0 || maxSize > 32768) throw new IllegalArgumentException("Invalid dictionary size: " + maxSize);
+		if(maxTokens < 1) throw new IllegalArgumentException("Invalid max tokens: " + maxTokens);
+		if(level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) throw new IllegalArgumentException("Invalid compression level: " + level);
+		this.maxSize = maxSize;
+		this.level = level;
+		this.sampleRate = Math.max(1, sampleRate);
+		tokens = new LinkedHashMap<String, Boolean>(maxTokens * 2, 0.75f, true) {
+			private static final long serialVersionUID = -1733418404347283462L;
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+				return size() > maxTokens;
+			}
+		};
+	}
+
+	/**
+	 * Creates a new PresetDictionary with the default settings
+	 */
+	public PresetDictionary() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_MAX_TOKENS, DEFAULT_SAMPLE_RATE, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Samples the passed data point's metric name and tags into the recently seen tokens
+	 * @param metric The metric name
+	 * @param tags The tags
+	 */
+	public void record(final String metric, final Map<String, String> tags) {
+		if(sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate)!=0) return;
+		synchronized(tokens) {
+			tokens.put(metric, Boolean.TRUE);
+			for(Map.Entry<String, String> tag: tags.entrySet()) {
+				tokens.put(tag.getKey() + "=" + tag.getValue(), Boolean.TRUE);
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the current dictionary from the recently seen tokens and activates it immediately
+	 * @return the new current dictionary
+	 */
+	public Dictionary rebuild() {
+		return activate(build());
+	}
+
+	/**
+	 * Builds a dictionary from the recently seen tokens without activating it. The most recently seen tokens are placed
+	 * at the end of the dictionary where deflate matches them with the shortest distances.
+	 * @return the built dictionary, which may have the same id as the current dictionary
+	 */
+	public Dictionary build() {
+		final List<String> recent;
+		synchronized(tokens) {
+			recent = new ArrayList<String>(tokens.keySet());
+		}
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream(maxSize);
+		final List<byte[]> chunks = new ArrayList<byte[]>();
+		int size = 0;
+		for(int i = recent.size()-1; i >= 0; i--) {
+			final byte[] b = (recent.get(i) + " ").getBytes(UTF8);
+			if(size + b.length > maxSize) break;
+			chunks.add(b);
+			size += b.length;
+		}
+		for(int i = chunks.size()-1; i >= 0; i--) {
+			baos.write(chunks.get(i), 0, chunks.get(i).length);
+		}
+		return new Dictionary(baos.toByteArray());
+	}
+
+	/**
+	 * Makes the passed dictionary the one packets are deflated with, unless it has the same id as the current one
+	 * @param d The dictionary to activate
+	 * @return the current dictionary
+	 */
+	public Dictionary activate(final Dictionary d) {
+		if(d.id!=current.id) current = d;
+		return current;
+	}
+
+	/**
+	 * Returns the dictionary currently in use
+	 * @return the current dictionary
+	 */
+	public Dictionary current() {
+		return current;
+	}
+
+	/**
+	 * Compresses the passed plain packet with the current dictionary
+	 * @param plain The plain packet
+	 * @param alloc The allocator to allocate the compressed packet with
+	 * @return the compressed packet, in which case the plain packet is released, or the plain packet if it would not shrink
+	 */
+	public ByteBuf deflate(final ByteBuf plain, final ByteBufAllocator alloc) {
+		return deflate(plain, alloc, current, level);
+	}
+
+	/**
+	 * Compresses the passed plain packet using the calling thread's pooled deflater
+	 * @param plain The plain packet
+	 * @param alloc The allocator to allocate the compressed packet with
+	 * @param dictionary The dictionary to prime the deflater with
+	 * @param level The compression level
+	 * @return the compressed packet, in which case the plain packet is released, or the plain packet if it would not shrink
+	 */
+	public static ByteBuf deflate(final ByteBuf plain, final ByteBufAllocator alloc, final Dictionary dictionary, final int level) {
+		final int len = plain.readableBytes();
+		if(len > MAX_PACKET) return plain;
+		DeflateState state = states.get();
+		if(state==null || state.level!=level) {
+			if(state!=null) state.deflater.end();
+			state = new DeflateState(level);
+			states.set(state);
+		}
+		final Deflater deflater = state.deflater;
+		deflater.reset();
+		if(dictionary.bytes.length > 0) deflater.setDictionary(dictionary.bytes);
+		plain.getBytes(plain.readerIndex(), state.in, 0, len);
+		deflater.setInput(state.in, 0, len);
+		deflater.finish();
+		int compressed = 0;
+		while(!deflater.finished() && compressed < state.out.length) {
+			compressed += deflater.deflate(state.out, compressed, state.out.length - compressed);
+		}
+		final int headerSize = DEFLATE.length() + dictionary.hexId.length() + 2;
+		if(!deflater.finished() || compressed + headerSize >= len) return plain;
+		final ByteBuf buf = alloc.buffer(headerSize + compressed);
+		buf.writeCharSequence(DEFLATE, UTF8);
+		buf.writeByte(' ');
+		buf.writeCharSequence(dictionary.hexId, UTF8);
+		buf.writeByte('\n');
+		buf.writeBytes(state.out, 0, compressed);
+		plain.release();
+		return buf;
+	}
+
+	/**
+	 * Compression ratio and CPU benchmark comparing a gzip stream per packet, pooled raw deflate,
+	 * and pooled raw deflate with a preset dictionary, on synthetic ~1400 byte telnet put packets.
+	 * @param args [number of packets]
+	 */
+	public static void main(String[] args) {
+		final int packets = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		final ByteBufAllocator alloc = UnpooledByteBufAllocator.DEFAULT;
+		final PresetDictionary pd = new PresetDictionary(DEFAULT_MAX_SIZE, DEFAULT_MAX_TOKENS, 1, Deflater.DEFAULT_COMPRESSION);
+		final String[] metrics = {"sys.cpu.user", "sys.cpu.system", "sys.cpu.idle", "sys.mem.free", "sys.mem.used", "jvm.gc.count", "jvm.gc.time", "jvm.thread.count", "net.bytes.in", "net.bytes.out"};
+		final byte[][] samples = new byte[256][];
+		final ThreadLocalRandom r = ThreadLocalRandom.current();
+		final Map<String, String> tags = new LinkedHashMap<String, String>();
+		for(int p = 0; p < samples.length; p++) {
+			final StringBuilder b = new StringBuilder("PUTBATCH --send-response\n");
+			final long time = System.currentTimeMillis();
+			while(b.length() < 1400) {
+				final String metric = metrics[r.nextInt(metrics.length)];
+				tags.clear();
+				tags.put("host", "appserver" + r.nextInt(4) + ".prod.example.com");
+				tags.put("app", "order-service");
+				tags.put("cpu", "" + r.nextInt(16));
+				pd.record(metric, tags);
+				b.append("put ").append(metric).append(' ').append(time).append(' ').append(r.nextInt(100000));
+				for(Map.Entry<String, String> e: tags.entrySet()) b.append(' ').append(e.getKey()).append('=').append(e.getValue());
+				b.append('\n');
+			}
+			samples[p] = b.toString().getBytes(UTF8);
+		}
+		final Dictionary dict = pd.rebuild();
+		System.out.println("Dictionary: " + dict);
+		for(int warm = 0; warm < 2; warm++) {
+			final boolean report = warm==1;
+			long plainBytes = 0, gzBytes = 0, rawBytes = 0, dictBytes = 0;
+			long start = System.nanoTime();
+			for(int i = 0; i < packets; i++) {
+				final byte[] s = samples[i % samples.length];
+				try {
+					final ByteArrayOutputStream baos = new ByteArrayOutputStream(s.length);
+					final GZIPOutputStream gos = new GZIPOutputStream(baos);
+					gos.write(s);
+					gos.finish();
+					gos.close();
+					gzBytes += baos.size();
+				} catch (Exception ex) {
+					throw new RuntimeException(ex);
+				}
+				plainBytes += s.length;
+			}
+			final long gzNanos = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int i = 0; i < packets; i++) {
+				final ByteBuf out = deflate(alloc.heapBuffer(samples[i % samples.length].length).writeBytes(samples[i % samples.length]), alloc, EMPTY, Deflater.DEFAULT_COMPRESSION);
+				rawBytes += out.readableBytes();
+				out.release();
+			}
+			final long rawNanos = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int i = 0; i < packets; i++) {
+				final ByteBuf out = deflate(alloc.heapBuffer(samples[i % samples.length].length).writeBytes(samples[i % samples.length]), alloc, dict, Deflater.DEFAULT_COMPRESSION);
+				dictBytes += out.readableBytes();
+				out.release();
+			}
+			final long dictNanos = System.nanoTime() - start;
+			if(report) {
+				System.out.println(String.format("%-22s %10s %12s", "Mode", "Ratio", "ns/packet"));
+				System.out.println(String.format("%-22s %10.3f %12d", "gzip stream/packet", (double)gzBytes/plainBytes, gzNanos/packets));
+				System.out.println(String.format("%-22s %10.3f %12d", "pooled raw deflate", (double)rawBytes/plainBytes, rawNanos/packets));
+				System.out.println(String.format("%-22s %10.3f %12d", "pooled dict deflate", (double)dictBytes/plainBytes, dictNanos/packets));
+			}
+		}
+	}
+}
@@ -0,0 +1,153 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.protocol.udp;
+
+import java.io.InputStream;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import net.opentsdb.client.json.JSONOps;
+
+/**
+ * <p>Title: PutBatchResponse</p>
+ * <p>Description: A reusable, single threaded holder for the fields of a UDP <code>PUTBATCH</code> response,
+ * populated with one streaming pass over the JSON payload that skips everything but
+ * <b><code>success</code></b>, <b><code>elapsed</code></b>, <b><code>allocated</code></b>, <b><code>errors</code></b> and <b><code>cause</code></b>.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.protocol.udp.PutBatchResponse</code></p>
+ */
+
+public class PutBatchResponse {
+	/** The number of data points stored, -1 if not present */
+	protected long success = -1L;
+	/** The server side elapsed time in nanos, -1 if not present */
+	protected long elapsed = -1L;
+	/** The server side allocated bytes, -1 if not present */
+	protected long allocated = -1L;
+	/** The number of errors, which the server reports as a count or an array */
+	protected long errors = 0L;
+	/** The failure cause, null if the batch did not fail */
+	protected String cause = null;
+
+	/**
+	 * Resets this response and populates it from the passed JSON payload. The payload's reader index is not modified.
+	 * @param payload The JSON payload
+	 * @return this response
+	 */
+	public PutBatchResponse parse(final ByteBuf payload) {
+		success = -1L;
+		elapsed = -1L;
+		allocated = -1L;
+		errors = 0L;
+		cause = null;
+		JsonParser parser = null;
+		try {
+			if(payload.hasArray()) {
+				parser = JSONOps.jfactory.createParser(payload.array(), payload.arrayOffset() + payload.readerIndex(), payload.readableBytes());
+			} else {
+				parser = JSONOps.jfactory.createParser((InputStream)new ByteBufInputStream(payload.duplicate()));
+			}
+			if(parser.nextToken()!=JsonToken.START_OBJECT) throw new IllegalArgumentException("Response is not a JSON object");
+			while(parser.nextToken()==JsonToken.FIELD_NAME) {
+				final String field = parser.getCurrentName();
+				final JsonToken value = parser.nextToken();
+				if("success".equals(field)) {
+					success = parser.getValueAsLong(-1L);
+				} else if("elapsed".equals(field)) {
+					elapsed = parser.getValueAsLong(-1L);
+				} else if("allocated".equals(field)) {
+					allocated = parser.getValueAsLong(-1L);
+				} else if("errors".equals(field)) {
+					if(value==JsonToken.START_ARRAY) {
+						long count = 0;
+						while(parser.nextToken()!=JsonToken.END_ARRAY) {
+							parser.skipChildren();
+							count++;
+						}
+						errors = count;
+					} else {
+						errors = parser.getValueAsLong(0L);
+					}
+				} else if("cause".equals(field)) {
+					cause = parser.getValueAsString();
+				} else {
+					parser.skipChildren();
+				}
+			}
+			return this;
+		} catch (IllegalArgumentException iae) {
+			throw iae;
+		} catch (Exception ex) {
+			throw new IllegalArgumentException("Failed to parse PUTBATCH response", ex);
+		} finally {
+			if(parser!=null) try { parser.close(); } catch (Exception x) {/* No Op */}
+		}
+	}
+
+	/**
+	 * Returns the number of data points stored
+	 * @return the number of stored data points or -1 if not present
+	 */
+	public long getSuccess() {
+		return success;
+	}
+
+	/**
+	 * Returns the server side elapsed time in nanos
+	 * @return the elapsed time or -1 if not present
+	 */
+	public long getElapsed() {
+		return elapsed;
+	}
+
+	/**
+	 * Returns the server side allocated bytes
+	 * @return the allocated bytes or -1 if not present
+	 */
+	public long getAllocated() {
+		return allocated;
+	}
+
+	/**
+	 * Returns the number of errors
+	 * @return the number of errors
+	 */
+	public long getErrors() {
+		return errors;
+	}
+
+	/**
+	 * Returns the failure cause
+	 * @return the failure cause or null if the batch did not fail
+	 */
+	public String getCause() {
+		return cause;
+	}
+
+	/**
+	 * Indicates if the batch failed
+	 * @return true if the batch failed
+	 */
+	public boolean isFailed() {
+		return cause!=null;
+	}
+
+	@Override
+	public String toString() {
+		return "PutBatchResponse [success=" + success + ", elapsed=" + elapsed + ", allocated=" + allocated + ", errors=" + errors + ", cause=" + cause + "]";
+	}
+}
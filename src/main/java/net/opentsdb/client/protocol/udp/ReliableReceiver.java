@@ -0,0 +1,230 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.protocol.udp;
+
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import net.opentsdb.client.protocol.Command;
+
+/**
+ * <p>Title: ReliableReceiver</p>
+ * <p>Description: A local reference receiver for reliable UDP, for testing. Each <code>PUTBATCH</code> packet is
+ * acknowledged with a <b><code>PUTBATCH --request-id=&lt;id&gt;:</code></b> response, duplicates are detected by request id
+ * and acknowledged again without being counted, and a configurable percentage of inbound packets and outbound acks
+ * can be dropped to simulate loss. Plain, gzipped and preset dictionary compressed packets are accepted.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.protocol.udp.ReliableReceiver</code></p>
+ */
+
+public class ReliableReceiver implements Runnable {
+	/** The number of recently received request ids remembered for duplicate detection */
+	public static final int DEDUP_SIZE = 65536;
+
+	private static final Charset UTF8 = Charset.forName("UTF8");
+
+	/** The receiving socket */
+	protected final DatagramSocket socket;
+	/** The percentage of inbound packets and outbound acks dropped */
+	protected final int lossPercent;
+	/** The decoder for preset dictionary compressed packets */
+	protected final DictionaryInflater inflater = new DictionaryInflater();
+	/** The recently received request ids */
+	protected final Map<Long, Boolean> received = new LinkedHashMap<Long, Boolean>(1024, 0.75f, false) {
+		private static final long serialVersionUID = -1095186722367051946L;
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<Long, Boolean> eldest) {
+			return size() > DEDUP_SIZE;
+		}
+	};
+	/** The receiver thread */
+	protected final Thread thread;
+	/** The number of unique packets received */
+	protected final AtomicLong uniquePackets = new AtomicLong(0L);
+	/** The number of duplicate packets received */
+	protected final AtomicLong duplicates = new AtomicLong(0L);
+	/** The number of data points received in unique packets */
+	protected final AtomicLong dataPoints = new AtomicLong(0L);
+	/** The number of inbound packets and outbound acks dropped */
+	protected final AtomicLong dropped = new AtomicLong(0L);
+
+	/**
+	 * Creates and starts a new ReliableReceiver
+	 * @param port The port to listen on, 0 for an ephemeral port
+	 * @param lossPercent The percentage of inbound packets and outbound acks to drop
+	 */
+	public ReliableReceiver(final int port, final int lossPercent) {
+		if(lossPercent < 0 || lossPercent > 100) throw new IllegalArgumentException("Invalid loss percent: " + lossPercent);
+		this.lossPercent = lossPercent;
+		try {
+			socket = new DatagramSocket(port);
+		} catch (SocketException ex) {
+			throw new RuntimeException("Failed to bind receiver to port [" + port + "]", ex);
+		}
+		thread = new Thread(this, "ReliableReceiver#" + socket.getLocalPort());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public static void main(String[] args) {
+		final int port = args.length > 0 ? Integer.parseInt(args[0]) : 4243;
+		final int loss = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+		final ReliableReceiver receiver = new ReliableReceiver(port, loss);
+		System.out.println("ReliableReceiver listening on [" + receiver.getPort() + "] with " + loss + "% loss");
+		while(true) {
+			try { Thread.sleep(5000); } catch (InterruptedException iex) { break; }
+			System.out.println(receiver);
+		}
+		receiver.close();
+	}
+
+	@Override
+	public void run() {
+		final byte[] buffer = new byte[65536];
+		while(!socket.isClosed()) {
+			try {
+				final DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
+				socket.receive(dp);
+				if(drop()) continue;
+				final ByteBuf plain = decode(Unpooled.wrappedBuffer(buffer, 0, dp.getLength()));
+				if(plain==null) continue;
+				try {
+					if(Command.matchCommand(plain)!=Command.PUTBATCH) continue;
+					final long requestId = Command.extractRequestId(plain);
+					final boolean duplicate;
+					synchronized(received) {
+						duplicate = requestId >= 0 && received.put(requestId, Boolean.TRUE)!=null;
+					}
+					final int points = countPoints(plain);
+					if(duplicate) {
+						duplicates.incrementAndGet();
+					} else {
+						uniquePackets.incrementAndGet();
+						dataPoints.addAndGet(points);
+					}
+					if(requestId >= 0 && !drop()) {
+						final byte[] ack = ("PUTBATCH --request-id=" + requestId + ":\n{\"success\":" + points + ",\"failed\":0,\"elapsed\":0,\"allocated\":0,\"errors\":0}").getBytes(UTF8);
+						socket.send(new DatagramPacket(ack, ack.length, dp.getSocketAddress()));
+					}
+				} finally {
+					plain.release();
+				}
+			} catch (Exception ex) {
+				if(!socket.isClosed()) System.err.println("ReliableReceiver error: " + ex);
+			}
+		}
+	}
+
+	private boolean drop() {
+		if(lossPercent > 0 && ThreadLocalRandom.current().nextInt(100) < lossPercent) {
+			dropped.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	private ByteBuf decode(final ByteBuf datagram) throws Exception {
+		if(datagram.readableBytes() > 2 && datagram.getUnsignedByte(0)==0x1f && datagram.getUnsignedByte(1)==0x8b) {
+			final GZIPInputStream gis = new GZIPInputStream(new ByteBufInputStream(datagram));
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream(datagram.readableBytes() * 4);
+			final byte[] b = new byte[1024];
+			int read = -1;
+			while((read = gis.read(b))!=-1) baos.write(b, 0, read);
+			gis.close();
+			return Unpooled.wrappedBuffer(baos.toByteArray());
+		}
+		return inflater.decode(datagram, UnpooledByteBufAllocator.DEFAULT);
+	}
+
+	private static int countPoints(final ByteBuf plain) {
+		int lines = 0;
+		int lineStart = plain.readerIndex();
+		final int end = plain.writerIndex();
+		boolean header = true;
+		for(int i = lineStart; i < end; i++) {
+			if(plain.getByte(i)=='\n') {
+				if(header) header = false;
+				else if(i > lineStart) lines++;
+				lineStart = i + 1;
+			}
+		}
+		if(lineStart < end && !header) lines++;
+		return lines;
+	}
+
+	/**
+	 * Stops the receiver
+	 */
+	public void close() {
+		socket.close();
+	}
+
+	/**
+	 * Returns the port the receiver is listening on
+	 * @return the port
+	 */
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Returns the number of unique packets received
+	 * @return the number of unique packets
+	 */
+	public long getUniquePackets() {
+		return uniquePackets.get();
+	}
+
+	/**
+	 * Returns the number of duplicate packets received
+	 * @return the number of duplicates
+	 */
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	/**
+	 * Returns the number of data points received in unique packets
+	 * @return the number of data points
+	 */
+	public long getDataPoints() {
+		return dataPoints.get();
+	}
+
+	/**
+	 * Returns the number of inbound packets and outbound acks dropped
+	 * @return the number of drops
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ReliableReceiver [port=" + getPort() + ", unique=" + uniquePackets + ", duplicates=" + duplicates
+				+ ", dataPoints=" + dataPoints + ", dropped=" + dropped + "]";
+	}
+}
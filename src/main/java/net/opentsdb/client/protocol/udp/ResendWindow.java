@@ -0,0 +1,248 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.protocol.udp;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * <p>Title: ResendWindow</p>
+ * <p>Description: The bounded window of sent but unacknowledged packets for reliable UDP.
+ * Packets are indexed by their sequence number masked by the window size. A packet is retained until it is acked,
+ * resent whenever its retransmission timeout expires, and dropped as lost after the maximum number of retries,
+ * or when a packet a full window later needs its slot.</p>
+ * <p>The retransmission timeout follows RFC 6298: it is computed from a smoothed round trip time and its variance,
+ * sampled only from packets that were not retransmitted, and doubled for each retry of a packet.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.protocol.udp.ResendWindow</code></p>
+ */
+
+public class ResendWindow {
+	/** The default initial retransmission timeout in ms. */
+	public static final long DEFAULT_INITIAL_RTO = 1000;
+	/** The default minimum retransmission timeout in ms. */
+	public static final long DEFAULT_MIN_RTO = 20;
+	/** The default maximum retransmission timeout in ms. */
+	public static final long DEFAULT_MAX_RTO = 10000;
+
+	/** The packet sequence numbers, -1 for an empty slot */
+	private final long[] seqs;
+	/** The retained packets */
+	private final ByteBuf[] packets;
+	/** The last send timestamps in nanos */
+	private final long[] lastSent;
+	/** The retry counts */
+	private final int[] retries;
+	/** The slot mask */
+	private final int mask;
+	/** The maximum number of retries */
+	private final int maxRetries;
+	/** The minimum RTO in nanos */
+	private final long minRto;
+	/** The maximum RTO in nanos */
+	private final long maxRto;
+
+	/** The smoothed RTT in nanos, -1 until the first sample */
+	private long srtt = -1L;
+	/** The RTT variance in nanos */
+	private long rttvar = 0L;
+	/** The current RTO in nanos */
+	private long rto;
+	/** The number of packets in the window */
+	private int size = 0;
+	/** The number of retransmitted packets */
+	private long retransmits = 0;
+	/** The number of packets dropped without an ack */
+	private long lost = 0;
+
+	/**
+	 * Creates a new ResendWindow
+	 * @param windowSize The window size, rounded up to the next power of 2
+	 * @param maxRetries The maximum number of times a packet is resent
+	 * @param initialRto The initial retransmission timeout in ms.
+	 * @param minRto The minimum retransmission timeout in ms.
+	 * @param maxRto The maximum retransmission timeout in ms.
+	 */
+	public ResendWindow(final int windowSize, final int maxRetries, final long initialRto, final long minRto, final long maxRto) {
+		if(windowSize < 1) throw new IllegalArgumentException("Invalid window size: " + windowSize);
+		if(maxRetries < 0) throw new IllegalArgumentException("Invalid max retries: " + maxRetries);
+		if(minRto < 1 || maxRto < minRto) throw new IllegalArgumentException("Invalid RTO range: " + minRto + "-" + maxRto);
+		final int cap = Math.max(1, Integer.highestOneBit(windowSize - 1) << 1);
+		seqs = new long[cap];
+		packets = new ByteBuf[cap];
+		lastSent = new long[cap];
+		retries = new int[cap];
+		mask = cap - 1;
+		Arrays.fill(seqs, -1L);
+		this.maxRetries = maxRetries;
+		this.minRto = TimeUnit.MILLISECONDS.toNanos(minRto);
+		this.maxRto = TimeUnit.MILLISECONDS.toNanos(maxRto);
+		rto = clamp(TimeUnit.MILLISECONDS.toNanos(initialRto));
+	}
+
+	/**
+	 * Adds a sent packet to the window
+	 * @param seq The packet sequence number
+	 * @param packet The packet, which the window takes ownership of
+	 * @param now The send timestamp in nanos
+	 * @return the sequence number of the unacknowledged packet evicted as lost to make room, or -1 if none was
+	 */
+	public synchronized long add(final long seq, final ByteBuf packet, final long now) {
+		final int slot = (int)(seq & mask);
+		final long evicted = seqs[slot];
+		if(evicted!=-1L) {
+			packets[slot].release();
+			lost++;
+			size--;
+		}
+		seqs[slot] = seq;
+		packets[slot] = packet;
+		lastSent[slot] = now;
+		retries[slot] = 0;
+		size++;
+		return evicted;
+	}
+
+	/**
+	 * Acknowledges a packet, releasing it and updating the RTO if it was not retransmitted
+	 * @param seq The acknowledged sequence number
+	 * @param now The ack timestamp in nanos
+	 * @return true if the packet was in the window, false for a duplicate or late ack
+	 */
+	public synchronized boolean ack(final long seq, final long now) {
+		final int slot = (int)(seq & mask);
+		if(seqs[slot]!=seq) return false;
+		if(retries[slot]==0) sample(now - lastSent[slot]);
+		seqs[slot] = -1L;
+		packets[slot].release();
+		packets[slot] = null;
+		size--;
+		return true;
+	}
+
+	/**
+	 * Collects the packets whose retransmission timeout has expired, dropping those that exhausted their retries
+	 * @param now The current timestamp in nanos
+	 * @param resend The list the retained duplicates of the packets to resend are added to
+	 * @param dropped The list the sequence numbers of the packets dropped as lost are added to
+	 * @return the number of packets dropped as lost
+	 */
+	public synchronized int due(final long now, final List<ByteBuf> resend, final List<Long> dropped) {
+		if(size==0) return 0;
+		final int before = dropped.size();
+		for(int i = 0; i < seqs.length; i++) {
+			if(seqs[i]==-1L) continue;
+			final long timeout = Math.min(maxRto, rto << Math.min(retries[i], 16));
+			if(now - lastSent[i] < timeout) continue;
+			if(retries[i] >= maxRetries) {
+				dropped.add(seqs[i]);
+				seqs[i] = -1L;
+				packets[i].release();
+				packets[i] = null;
+				size--;
+				lost++;
+			} else {
+				retries[i]++;
+				lastSent[i] = now;
+				retransmits++;
+				resend.add(packets[i].duplicate().retain());
+			}
+		}
+		return dropped.size() - before;
+	}
+
+	/**
+	 * Releases all the packets in the window
+	 */
+	public synchronized void clear() {
+		for(int i = 0; i < seqs.length; i++) {
+			if(seqs[i]!=-1L) {
+				seqs[i] = -1L;
+				packets[i].release();
+				packets[i] = null;
+			}
+		}
+		size = 0;
+	}
+
+	/**
+	 * Updates the smoothed RTT, variance and RTO with a new sample
+	 * @param rtt The RTT sample in nanos
+	 */
+	private void sample(final long rtt) {
+		if(srtt < 0) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+		} else {
+			rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+			srtt = (7 * srtt + rtt) / 8;
+		}
+		rto = clamp(srtt + 4 * rttvar);
+	}
+
+	private long clamp(final long nanos) {
+		return Math.max(minRto, Math.min(maxRto, nanos));
+	}
+
+	/**
+	 * Returns the current retransmission timeout
+	 * @return the RTO in ms.
+	 */
+	public synchronized long getRto() {
+		return TimeUnit.NANOSECONDS.toMillis(rto);
+	}
+
+	/**
+	 * Returns the smoothed round trip time
+	 * @return the SRTT in microseconds or -1 if no RTT has been sampled
+	 */
+	public synchronized long getSrtt() {
+		return srtt < 0 ? -1L : TimeUnit.NANOSECONDS.toMicros(srtt);
+	}
+
+	/**
+	 * Returns the maximum number of times a packet is resent
+	 * @return the maximum number of retries
+	 */
+	public int maxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * Returns the number of unacknowledged packets in the window
+	 * @return the number of unacknowledged packets
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of retransmitted packets
+	 * @return the number of retransmits
+	 */
+	public synchronized long getRetransmits() {
+		return retransmits;
+	}
+
+	/**
+	 * Returns the number of packets dropped without an ack
+	 * @return the number of lost packets
+	 */
+	public synchronized long getLost() {
+		return lost;
+	}
+}
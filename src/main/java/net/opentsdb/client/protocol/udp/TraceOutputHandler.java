@@ -13,17 +13,18 @@
 package net.opentsdb.client.protocol.udp;
 
 import java.io.ByteArrayOutputStream;
-import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.ByteBufInputStream;
-import io.netty.buffer.ByteBufOutputStream;
-import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageEncoder;
 import io.netty.util.ByteProcessor;
@@ -31,102 +32,234 @@ import io.netty.util.ReferenceCountUtil;
 import net.opentsdb.client.buffer.BufferManager;
 
 /**
- * <p>Title: UDPPacketHandler</p>
- * <p>Description: </p> 
+ * <p>Title: TraceOutputHandler</p>
+ * <p>Description: Splits a command buffer, a header line followed by data point lines, into packets of at most
+ * <b><code>maxMessageSize</code></b> bytes, each starting with the header. All the line offsets are found in one pass,
+ * and lines are never split across packets, so a single line larger than a packet is sent in a packet of its own.</p>
+ * <p>Uncompressed packets are composites of a shared, read-only slice of the header and a slice of the payload, so no
+ * bytes are copied. Gzipped packets are compressed with one reusable deflater per handler, packing lines against
+ * a running estimate of the compression ratio and halving any packet that still compresses too large.</p>
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>net.opentsdb.client.protocol.udp.TraceOutputHandler</code></p>
  */
 
 public class TraceOutputHandler extends MessageToMessageEncoder<ByteBuf> {
-	
+	/** The gzip member header: magic, deflate, no flags, no mtime, no extra flags, unknown OS */
+	private static final byte[] GZIP_HEADER = {0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff};
+	/** The gzip header and trailer overhead */
+	private static final int GZIP_OVERHEAD = GZIP_HEADER.length + 8;
+	/** The initial estimate of the compressed to plain size ratio */
+	private static final double INITIAL_RATIO = 0.35;
+	/** The fraction of the estimated plain budget packed into a gzipped packet */
+	private static final double RATIO_MARGIN = 0.9;
+
 	protected final boolean gzip;
 	protected final int maxMessageSize;
 	protected final BufferManager bufferManager = BufferManager.getInstance();
-	
-	
+	protected final ByteBufAllocator alloc = bufferManager.getChildChannelBufferAllocator();
+
+	/** The exclusive end offsets of the lines of the buffer being encoded */
+	private int[] lineEnds = new int[256];
+	/** The number of lines of the buffer being encoded */
+	private int lineCount = 0;
+	/** Records the end offset of every line in one pass */
+	private final LineIndexer lineIndexer = new LineIndexer();
+
+	/** The reusable deflater, null if gzip is disabled */
+	private final Deflater deflater;
+	/** The reusable gzip checksum */
+	private final CRC32 crc;
+	/** The plain bytes scratch array */
+	private byte[] in = new byte[0];
+	/** The compressed bytes scratch array */
+	private byte[] out = new byte[0];
+	/** The running estimate of the compressed to plain size ratio */
+	private double ratio = INITIAL_RATIO;
+
+	/**
+	 * Creates a new TraceOutputHandler
+	 * @param gzip true to gzip each packet
+	 * @param maxMessageSize The maximum packet size in bytes
+	 */
 	public TraceOutputHandler(final boolean gzip, final int maxMessageSize) {
+		if(maxMessageSize < 1) throw new IllegalArgumentException("Invalid max message size: " + maxMessageSize);
 		this.gzip = gzip;
 		this.maxMessageSize = maxMessageSize;
+		deflater = gzip ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+		crc = gzip ? new CRC32() : null;
 	}
 
 	public static void main (String[] args) {
-		final TraceOutputHandler toh = new TraceOutputHandler(true, 24);
-		final List<Object> out = new ArrayList<Object>();
-		final ByteBuf buf = toh.bufferManager.wrap("HELLO\nThe moon is a ballon\nIt's not the men in your life, but the life in your men\n", UTF8);
-		try {
-			toh.encode(null, buf, out);
-		} catch (Exception ex) {
-			ex.printStackTrace(System.err);
+		final String text = "HELLO\nThe moon is a ballon\nIt's not the men in your life, but the life in your men\nshort\nno newline at the end";
+		for(boolean gz: new boolean[]{false, true}) {
+			final TraceOutputHandler toh = new TraceOutputHandler(gz, gz ? 64 : 40);
+			final List<Object> out = new ArrayList<Object>();
+			final ByteBuf buf = toh.bufferManager.wrap(text, UTF8);
+			try {
+				toh.encode(null, buf, out);
+				for(Object o: out) {
+					final ByteBuf packet = (ByteBuf)o;
+					System.out.println("[" + packet.readableBytes() + "] " + (gz ? fromZippedBuf(packet) : packet.toString(UTF8)).replace("\n", "\\n"));
+					ReferenceCountUtil.safeRelease(packet);
+				}
+			} catch (Exception ex) {
+				ex.printStackTrace(System.err);
+			} finally {
+				ReferenceCountUtil.safeRelease(buf);
+			}
+			toh.end();
 		}
-		
 	}
-	
+
 	@Override
 	protected void encode(final ChannelHandlerContext ctx, final ByteBuf msg, final List<Object> out) throws Exception {
-		final int payloadStarts = msg.forEachByte(ByteProcessor.FIND_CRLF) + 1;
-		final ByteBuf command = msg.copy(msg.readerIndex(), payloadStarts).asReadOnly();
-		msg.readerIndex(payloadStarts);
-		while(true) {
-			final ByteBuf outBuf = bufferManager.buffer(maxMessageSize * 2);
-			final int index = outBuf.writerIndex();
-			final int bytesCopied = payload(msg, outBuf, command);
-			if(bytesCopied > index) {
-				out.add(outBuf);
-			} else {
-				ReferenceCountUtil.safeRelease(outBuf);
-				break;
-			}
-		}
-		ReferenceCountUtil.safeRelease(msg);		
-	}
-	
-	
-	protected int payload(final ByteBuf inBuf, final ByteBuf outBuf, final ByteBuf command) throws Exception {
-		int startingIndex = inBuf.readerIndex();
-		int toIndex = -1;
-		int inRewind = startingIndex;
-		int outRewind = outBuf.writerIndex();
-		final ByteBufOutputStream bbos = new ByteBufOutputStream(outBuf);			
-		final GZIPOutputStream gos;
-		final OutputStream os;
-		
+		final int start = msg.readerIndex();
+		final int end = msg.writerIndex();
+		final int headerEnd = msg.forEachByte(ByteProcessor.FIND_LF);
+		if(headerEnd==-1 || headerEnd + 1==end) return;
+		final int payloadStart = headerEnd + 1;
+		lineCount = 0;
+		lineIndexer.offset = payloadStart;
+		msg.forEachByte(payloadStart, end - payloadStart, lineIndexer);
+		if(lineCount==0 || lineEnds[lineCount-1] < end) addLine(end);
 		if(gzip) {
-			gos = new GZIPOutputStream(bbos);
-			os = gos;
+			splitGzip(msg, start, payloadStart, out);
 		} else {
-			gos = null;
-			os = bbos;
+			splitPlain(msg, msg.slice(start, payloadStart - start).asReadOnly(), payloadStart, out);
 		}
-		try {
-			os.write(ByteBufUtil.getBytes(command));
-			while((toIndex = inBuf.forEachByte(startingIndex, inBuf.readableBytes() - startingIndex, ByteProcessor.FIND_CRLF))!=-1) {
-//				toIndex++;
-				inBuf.readBytes(os, toIndex - startingIndex);
-				os.flush();
-				bbos.flush();
-				if(outBuf.writerIndex() > maxMessageSize) {
-					inBuf.readerIndex(inRewind);
-					outBuf.writerIndex(outRewind);
-					break;
-				} else {
-					inRewind = inBuf.readerIndex();
-					outRewind = outBuf.writerIndex();
-					startingIndex = toIndex;
-				}
+	}
+
+	/**
+	 * Packs lines into uncompressed packets of the shared header and a payload slice
+	 * @param msg The command buffer
+	 * @param header The read-only header slice
+	 * @param payloadStart The offset of the first payload byte
+	 * @param out The list to add the packets to
+	 */
+	protected void splitPlain(final ByteBuf msg, final ByteBuf header, final int payloadStart, final List<Object> out) {
+		final int budget = maxMessageSize - header.readableBytes();
+		int packetStart = payloadStart;
+		int packetEnd = payloadStart;
+		for(int i = 0; i < lineCount; i++) {
+			final int lineEnd = lineEnds[i];
+			if(lineEnd - packetStart > budget && packetEnd > packetStart) {
+				out.add(plainPacket(msg, header, packetStart, packetEnd));
+				packetStart = packetEnd;
 			}
-			return outBuf.writerIndex();
-		} finally {
-			if(gzip) {
-				try { gos.finish(); } catch (Exception x) {/* No Op */}
-				try { gos.close(); } catch (Exception x) {/* No Op */}
+			packetEnd = lineEnd;
+		}
+		if(packetEnd > packetStart) out.add(plainPacket(msg, header, packetStart, packetEnd));
+	}
+
+	private ByteBuf plainPacket(final ByteBuf msg, final ByteBuf header, final int from, final int to) {
+		final CompositeByteBuf packet = alloc.compositeBuffer(2);
+		// slices share the command buffer's reference count, so each retain keeps it alive for this packet
+		packet.addComponents(true, header.retain(), msg.slice(from, to - from).retain());
+		return packet;
+	}
+
+	/**
+	 * Packs lines into gzipped packets against the estimated compression ratio
+	 * @param msg The command buffer
+	 * @param start The offset of the header
+	 * @param payloadStart The offset of the first payload byte
+	 * @param out The list to add the packets to
+	 */
+	protected void splitGzip(final ByteBuf msg, final int start, final int payloadStart, final List<Object> out) {
+		final int headerSize = payloadStart - start;
+		int packetStart = payloadStart;
+		int firstLine = 0;
+		for(int i = 0; i < lineCount; i++) {
+			final int budget = (int)((maxMessageSize - GZIP_OVERHEAD) * RATIO_MARGIN / ratio) - headerSize;
+			if(lineEnds[i] - packetStart > budget && i > firstLine) {
+				gzipPackets(msg, start, headerSize, firstLine, i, out);
+				packetStart = lineEnds[i-1];
+				firstLine = i;
 			}
-			try { bbos.close(); } catch (Exception x) {/* No Op */}
+		}
+		gzipPackets(msg, start, headerSize, firstLine, lineCount, out);
+	}
+
+	/**
+	 * Compresses the header and lines <b><code>[firstLine, lastLine)</code></b> into one packet,
+	 * splitting the lines in half while the packet compresses to more than the max message size
+	 */
+	private void gzipPackets(final ByteBuf msg, final int start, final int headerSize, final int firstLine, final int lastLine, final List<Object> out) {
+		final int from = firstLine==0 ? start + headerSize : lineEnds[firstLine-1];
+		final int to = lineEnds[lastLine-1];
+		final ByteBuf packet = gzip(msg, start, headerSize, from, to);
+		if(packet.readableBytes() > maxMessageSize && lastLine - firstLine > 1) {
+			packet.release();
+			final int mid = (firstLine + lastLine) >>> 1;
+			gzipPackets(msg, start, headerSize, firstLine, mid, out);
+			gzipPackets(msg, start, headerSize, mid, lastLine, out);
+		} else {
+			out.add(packet);
 		}
 	}
-	
+
+	private ByteBuf gzip(final ByteBuf msg, final int start, final int headerSize, final int from, final int to) {
+		final int plainSize = headerSize + to - from;
+		if(in.length < plainSize) in = new byte[plainSize];
+		if(out.length < plainSize + 64) out = new byte[plainSize + 64];
+		msg.getBytes(start, in, 0, headerSize);
+		msg.getBytes(from, in, headerSize, to - from);
+		crc.reset();
+		crc.update(in, 0, plainSize);
+		deflater.reset();
+		deflater.setInput(in, 0, plainSize);
+		deflater.finish();
+		int compressed = 0;
+		while(!deflater.finished()) {
+			if(compressed==out.length) out = Arrays.copyOf(out, out.length * 2);
+			compressed += deflater.deflate(out, compressed, out.length - compressed);
+		}
+		ratio = (ratio * 3 + (double)compressed / plainSize) / 4;
+		final ByteBuf packet = alloc.buffer(GZIP_OVERHEAD + compressed);
+		packet.writeBytes(GZIP_HEADER)
+			.writeBytes(out, 0, compressed)
+			.writeIntLE((int)crc.getValue())
+			.writeIntLE(plainSize);
+		return packet;
+	}
+
+	private void addLine(final int lineEnd) {
+		if(lineCount==lineEnds.length) lineEnds = Arrays.copyOf(lineEnds, lineCount * 2);
+		lineEnds[lineCount++] = lineEnd;
+	}
+
+	/**
+	 * <p>Title: LineIndexer</p>
+	 * <p>Description: Records the exclusive end offset of every line terminated by a LF</p>
+	 */
+	private class LineIndexer implements ByteProcessor {
+		/** The offset of the next byte processed */
+		int offset;
+
+		@Override
+		public boolean process(final byte value) throws Exception {
+			offset++;
+			if(value=='\n') addLine(offset);
+			return true;
+		}
+	}
+
+	@Override
+	public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+		end();
+		super.handlerRemoved(ctx);
+	}
+
+	/**
+	 * Releases the deflater's native resources
+	 */
+	protected void end() {
+		if(deflater!=null) deflater.end();
+	}
+
 	private static final Charset UTF8 = Charset.forName("UTF8");
-	
+
 	public static String fromZippedBuf(final ByteBuf buf) {
 		ByteBufInputStream bbis = new ByteBufInputStream(buf.slice());
 		GZIPInputStream gis = null;
@@ -29,6 +29,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -46,7 +47,6 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.redis.ArrayRedisMessage;
@@ -59,6 +59,7 @@ import io.netty.handler.codec.redis.RedisMessage;
 import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.GenericFutureListener;
 import net.opentsdb.client.buffer.BufferManager;
+import net.opentsdb.client.util.EventLoopRegistry;
 import net.opentsdb.client.util.SpinLock;
 
 
@@ -90,7 +91,7 @@ public class RedisClient extends ChannelInboundHandlerAdapter {
 	/** The KEYS wildcard */
 	protected static final RedisMessage KEYSWC = rm(bman.upwrap("*").asReadOnly());
     
-    protected final EventLoopGroup group = new NioEventLoopGroup();
+    protected final EventLoopGroup group = EventLoopRegistry.acquire(false);
     protected final Bootstrap bootstrap = new Bootstrap();
     protected final Channel ch;
     
@@ -122,6 +123,7 @@ public class RedisClient extends ChannelInboundHandlerAdapter {
     }
     
     protected final AtomicLong reqId = new AtomicLong();
+    protected final AtomicBoolean closed = new AtomicBoolean(false);
 	/** Instance logger */
 	protected final Logger log = LoggerFactory.getLogger(getClass());
 	/** Response Queue */
@@ -174,8 +176,9 @@ public class RedisClient extends ChannelInboundHandlerAdapter {
 	}
 	
 	public void close() {
+		if(!closed.compareAndSet(false, true)) return;
 		ch.close();
-		group.shutdownGracefully();
+		EventLoopRegistry.release(group);
 		log("Closed");
 	}
 	
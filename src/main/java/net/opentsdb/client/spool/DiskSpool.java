@@ -0,0 +1,489 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.spool;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import net.opentsdb.client.util.NIOHelper;
+
+/**
+ * <p>Title: DiskSpool</p>
+ * <p>Description: A segmented, memory-mapped, append-only spool used to hold flushed batches
+ * while the OpenTSDB endpoint is unreachable.</p>
+ * <p>Each segment is a fixed size mapped file starting with an 8 byte header (magic + version),
+ * followed by records of <b><code>[int length][int crc32][length bytes]</code></b>. Unused
+ * space is zero filled so a zero length marks the end of a segment's data.
+ * When the spool is opened, every segment is scanned and the scan stops at the first record
+ * with an invalid length or checksum, which truncates any torn write left by a crash.</p>
+ * <p>Replay is at-least-once: a segment is only deleted once it has been fully polled, so
+ * a restart replays the partially drained head segment from the beginning.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.spool.DiskSpool</code></p>
+ */
+
+public class DiskSpool {
+	/** A scheduler shared by all spool replayers */
+	protected static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1, new ThreadFactory(){
+		final AtomicInteger serial = new AtomicInteger();
+		@Override
+		public Thread newThread(final Runnable r) {
+			final Thread t = new Thread(r, "SpoolReplayThread#" + serial.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	/** The segment file magic */
+	public static final int MAGIC = 0x5453504C;
+	/** The segment format version */
+	public static final int VERSION = 1;
+	/** The segment header size in bytes */
+	public static final int SEGMENT_HEADER = 8;
+	/** The record header size in bytes */
+	public static final int RECORD_HEADER = 8;
+	/** The segment file extension */
+	public static final String EXTENSION = ".spool";
+	/** The default segment size (16 MB) */
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+	/** The default maximum total spool size (256 MB) */
+	public static final long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;
+
+	/** The spool directory */
+	protected final File dir;
+	/** The size of each segment in bytes */
+	protected final int segmentSize;
+	/** The maximum total size of all segments in bytes */
+	protected final long maxSize;
+	/** The segments, oldest first. The last segment is the one being appended to */
+	protected final Deque<Segment> segments = new ArrayDeque<Segment>();
+	/** The checksum calculator */
+	protected final CRC32 crc = new CRC32();
+	/** The next segment id */
+	protected long nextSegmentId = 0;
+	/** The number of unread bytes in the spool */
+	protected long pendingBytes = 0;
+	/** The number of unread records in the spool */
+	protected long pendingRecords = 0;
+	/** The number of records dropped through segment eviction or because they were too large */
+	protected long droppedRecords = 0;
+	/** Indicates if the spool has been closed */
+	protected boolean closed = false;
+
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+
+	/** Segment file filter */
+	private static final FileFilter SEGMENT_FILTER = new FileFilter() {
+		@Override
+		public boolean accept(final File f) {
+			return f.isFile() && f.getName().endsWith(EXTENSION);
+		}
+	};
+
+	/**
+	 * Creates a new DiskSpool, recovering any segments already in the passed directory
+	 * @param dir The spool directory
+	 * @param segmentSize The size of each segment in bytes
+	 * @param maxSize The maximum total size of all segments in bytes
+	 */
+	public DiskSpool(final File dir, final int segmentSize, final long maxSize) {
+		if(dir==null) throw new IllegalArgumentException("The passed directory was null");
+		if(segmentSize <= SEGMENT_HEADER + RECORD_HEADER) throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+		if(maxSize < segmentSize) throw new IllegalArgumentException("The max size [" + maxSize + "] is less than the segment size [" + segmentSize + "]");
+		if(!dir.exists() && !dir.mkdirs()) throw new IllegalArgumentException("Failed to create spool directory [" + dir + "]");
+		if(!dir.isDirectory()) throw new IllegalArgumentException("The spool directory [" + dir + "] is not a directory");
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.maxSize = maxSize;
+		recover();
+	}
+
+	/**
+	 * Scans the spool directory and reopens any existing segments
+	 */
+	protected void recover() {
+		final File[] files = dir.listFiles(SEGMENT_FILTER);
+		if(files==null || files.length==0) return;
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(final File f1, final File f2) {
+				return Long.compare(segmentId(f1), segmentId(f2));
+			}
+		});
+		for(File f: files) {
+			final long id = segmentId(f);
+			if(id < 0 || f.length() != segmentSize) {
+				log.warn("Ignoring invalid spool segment [{}]", f);
+				continue;
+			}
+			final Segment seg = new Segment(f, id);
+			if(!seg.recover()) {
+				seg.delete();
+				continue;
+			}
+			if(seg.readPos==seg.writePos) {
+				seg.delete();
+				continue;
+			}
+			segments.addLast(seg);
+			nextSegmentId = id + 1;
+		}
+		if(!segments.isEmpty()) {
+			log.info("Recovered [{}] spooled records ({} bytes) from [{}] segments in [{}]", pendingRecords, pendingBytes, segments.size(), dir);
+		}
+	}
+
+	/**
+	 * Appends the readable bytes of the passed buffer to the spool.
+	 * The buffer's indexes and reference count are not modified.
+	 * @param buf The buffer to spool
+	 * @return true if the buffer was spooled, false if it was dropped
+	 */
+	public synchronized boolean append(final ByteBuf buf) {
+		if(closed) return false;
+		final int length = buf.readableBytes();
+		if(length==0) return true;
+		final int recordSize = RECORD_HEADER + length;
+		if(recordSize > segmentSize - SEGMENT_HEADER) {
+			droppedRecords++;
+			log.warn("Dropping spool record of [{}] bytes. Larger than the segment size [{}]", length, segmentSize);
+			return false;
+		}
+		Segment seg = segments.peekLast();
+		if(seg==null || seg.remaining() < recordSize) {
+			seg = rollSegment();
+		}
+		seg.write(buf, length);
+		pendingBytes += length;
+		pendingRecords++;
+		return true;
+	}
+
+	/**
+	 * Removes the oldest record from the spool and returns it in a buffer from the passed allocator
+	 * @param alloc The allocator to create the returned buffer with
+	 * @return the oldest record or null if the spool is empty
+	 */
+	public synchronized ByteBuf poll(final ByteBufAllocator alloc) {
+		if(closed) return null;
+		while(true) {
+			final Segment seg = segments.peekFirst();
+			if(seg==null) return null;
+			final ByteBuf buf = seg.read(alloc);
+			if(buf!=null) {
+				pendingBytes -= buf.readableBytes();
+				pendingRecords--;
+				if(seg.readPos==seg.writePos && segments.size()==1) {
+					// fully drained, so start from a clean slate
+					segments.pollFirst().delete();
+				}
+				return buf;
+			}
+			if(segments.size()==1 && seg.readPos==seg.writePos) {
+				segments.pollFirst().delete();
+				return null;
+			}
+			// head segment exhausted (or corrupt from this point)
+			segments.pollFirst();
+			discard(seg);
+		}
+	}
+
+	/**
+	 * Closes a new segment for appending, evicting the oldest segments if the max size would be exceeded
+	 * @return the new segment
+	 */
+	protected Segment rollSegment() {
+		final Segment current = segments.peekLast();
+		if(current!=null) current.seal();
+		while(!segments.isEmpty() && ((long)(segments.size() + 1) * segmentSize) > maxSize) {
+			final Segment evicted = segments.pollFirst();
+			log.warn("Spool full. Evicting segment [{}] with [{}] unread records", evicted.file.getName(), evicted.records);
+			droppedRecords += evicted.records;
+			discard(evicted);
+		}
+		final Segment seg = new Segment(new File(dir, String.format("%020d%s", nextSegmentId, EXTENSION)), nextSegmentId);
+		nextSegmentId++;
+		seg.create();
+		segments.addLast(seg);
+		return seg;
+	}
+
+	/**
+	 * Deletes the passed segment and removes its unread data from the pending totals
+	 * @param seg The segment to discard
+	 */
+	protected void discard(final Segment seg) {
+		pendingBytes -= seg.bytes;
+		pendingRecords -= seg.records;
+		seg.delete();
+	}
+
+	/**
+	 * Indicates if the spool has any unread records
+	 * @return true if the spool is empty, false otherwise
+	 */
+	public synchronized boolean isEmpty() {
+		return pendingRecords==0;
+	}
+
+	/**
+	 * Returns the number of unread payload bytes in the spool
+	 * @return the number of unread bytes
+	 */
+	public synchronized long getPendingBytes() {
+		return pendingBytes;
+	}
+
+	/**
+	 * Returns the number of unread records in the spool
+	 * @return the number of unread records
+	 */
+	public synchronized long getPendingRecords() {
+		return pendingRecords;
+	}
+
+	/**
+	 * Returns the number of records dropped because of segment eviction or size
+	 * @return the number of dropped records
+	 */
+	public synchronized long getDroppedRecords() {
+		return droppedRecords;
+	}
+
+	/**
+	 * Returns the number of segment files in the spool
+	 * @return the number of segments
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Forces all segments to disk and unmaps them. Unread records remain on disk
+	 * and will be recovered when the spool is next opened.
+	 */
+	public synchronized void close() {
+		if(closed) return;
+		closed = true;
+		for(Segment seg: segments) {
+			seg.seal();
+		}
+		segments.clear();
+	}
+
+	/**
+	 * Schedules a spool replay task on the shared replay scheduler
+	 * @param task The replay task
+	 * @param periodMs The period between task executions in ms.
+	 * @return the schedule handle
+	 */
+	public static ScheduledFuture<?> schedule(final Runnable task, final long periodMs) {
+		return scheduler.scheduleWithFixedDelay(task, periodMs, periodMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Extracts the segment id from a segment file name
+	 * @param f The segment file
+	 * @return the segment id or -1 if the name is not a valid segment name
+	 */
+	protected static long segmentId(final File f) {
+		final String name = f.getName();
+		try {
+			return Long.parseLong(name.substring(0, name.length() - EXTENSION.length()));
+		} catch (Exception ex) {
+			return -1L;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "DiskSpool [dir=" + dir + ", segments=" + segments.size() + ", records=" + pendingRecords + ", bytes=" + pendingBytes + "]";
+	}
+
+	/**
+	 * <p>Title: Segment</p>
+	 * <p>Description: A single mapped spool segment file</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>net.opentsdb.client.spool.DiskSpool.Segment</code></p>
+	 */
+	protected class Segment {
+		/** The segment file */
+		final File file;
+		/** The segment id */
+		final long id;
+		/** The segment mapping, null when sealed and not yet being read */
+		MappedByteBuffer mbb = null;
+		/** The offset of the next record to read */
+		int readPos = SEGMENT_HEADER;
+		/** The offset the next record will be written at */
+		int writePos = SEGMENT_HEADER;
+		/** The number of unread records in this segment */
+		long records = 0;
+		/** The number of unread payload bytes in this segment */
+		long bytes = 0;
+
+		Segment(final File file, final long id) {
+			this.file = file;
+			this.id = id;
+		}
+
+		/**
+		 * Creates and maps a new empty segment
+		 */
+		void create() {
+			mbb = NIOHelper.map(file, segmentSize);
+			mbb.putInt(0, MAGIC);
+			mbb.putInt(4, VERSION);
+		}
+
+		/**
+		 * Maps an existing segment and scans it for valid records
+		 * @return true if the segment is valid, false otherwise
+		 */
+		boolean recover() {
+			mbb = NIOHelper.map(file, segmentSize);
+			if(mbb.getInt(0)!=MAGIC || mbb.getInt(4)!=VERSION) {
+				log.warn("Invalid spool segment header in [{}]", file);
+				return false;
+			}
+			int pos = SEGMENT_HEADER;
+			while(true) {
+				final int length = validRecordAt(pos);
+				if(length < 1) break;
+				pos += RECORD_HEADER + length;
+				records++;
+				bytes += length;
+			}
+			writePos = pos;
+			pendingRecords += records;
+			pendingBytes += bytes;
+			return true;
+		}
+
+		/**
+		 * Validates the record at the passed offset
+		 * @param pos The offset of the record header
+		 * @return the length of the record payload or -1 if there is no valid record at the offset
+		 */
+		int validRecordAt(final int pos) {
+			if(pos + RECORD_HEADER > segmentSize) return -1;
+			final int length = mbb.getInt(pos);
+			if(length < 1 || pos + RECORD_HEADER + length > segmentSize) return -1;
+			final ByteBuffer payload = mbb.duplicate();
+			payload.limit(pos + RECORD_HEADER + length).position(pos + RECORD_HEADER);
+			crc.reset();
+			crc.update(payload);
+			if((int)crc.getValue()!=mbb.getInt(pos + 4)) return -1;
+			return length;
+		}
+
+		/**
+		 * Returns the number of bytes available for appending
+		 * @return the free bytes in this segment
+		 */
+		int remaining() {
+			return mbb==null ? 0 : segmentSize - writePos;
+		}
+
+		/**
+		 * Writes a record
+		 * @param buf The buffer containing the payload
+		 * @param length The number of readable bytes to write
+		 */
+		void write(final ByteBuf buf, final int length) {
+			final ByteBuffer src = buf.nioBuffer(buf.readerIndex(), length);
+			crc.reset();
+			crc.update(src.duplicate());
+			final ByteBuffer dst = mbb.duplicate();
+			dst.position(writePos + RECORD_HEADER);
+			dst.put(src);
+			mbb.putInt(writePos + 4, (int)crc.getValue());
+			// length goes last so a torn write is never seen as a valid record
+			mbb.putInt(writePos, length);
+			writePos += RECORD_HEADER + length;
+			records++;
+			bytes += length;
+		}
+
+		/**
+		 * Reads the next record
+		 * @param alloc The allocator to create the returned buffer with
+		 * @return the record or null if there are no more valid records in this segment
+		 */
+		ByteBuf read(final ByteBufAllocator alloc) {
+			if(mbb==null) mbb = NIOHelper.map(file, segmentSize);
+			if(readPos >= writePos) return null;
+			final int length = validRecordAt(readPos);
+			if(length < 1) {
+				log.warn("Corrupt spool record in [{}] at offset [{}]. Skipping remainder of segment", file.getName(), readPos);
+				readPos = writePos;
+				return null;
+			}
+			final ByteBuffer src = mbb.duplicate();
+			src.limit(readPos + RECORD_HEADER + length).position(readPos + RECORD_HEADER);
+			final ByteBuf buf = alloc.buffer(length);
+			buf.writeBytes(src);
+			readPos += RECORD_HEADER + length;
+			records--;
+			bytes -= length;
+			return buf;
+		}
+
+		/**
+		 * Forces the segment content to disk and unmaps it
+		 */
+		void seal() {
+			if(mbb!=null) {
+				try { mbb.force(); } catch (Exception x) {/* No Op */}
+				NIOHelper.clean(mbb);
+				mbb = null;
+			}
+		}
+
+		/**
+		 * Unmaps and deletes the segment file
+		 */
+		void delete() {
+			if(mbb!=null) {
+				NIOHelper.clean(mbb);
+				mbb = null;
+			}
+			if(!file.delete()) {
+				log.warn("Failed to delete spool segment [{}]", file);
+				file.deleteOnExit();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,113 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.tracing;
+
+/**
+ * <p>Title: FlushResult</p>
+ * <p>Description: The outcome of a flush: what the client sent, what the server reported importing and the round trip time.
+ * The server reported fields are -1 when the server did not report them or no response was expected,
+ * such as for a batch spooled during an outage.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.tracing.FlushResult</code></p>
+ */
+
+public class FlushResult {
+	/** The result of a flush that had nothing to send */
+	public static final FlushResult EMPTY = new FlushResult(0, 0, 0, 0, -1L, -1L);
+
+	/** The number of data points flushed */
+	protected final long points;
+	/** The number of bytes sent */
+	protected final long bytes;
+	/** The number of data points the server stored */
+	protected final long success;
+	/** The number of data points the server failed to store */
+	protected final long failed;
+	/** The server side elapsed time in nanos */
+	protected final long elapsed;
+	/** The client observed round trip time in nanos */
+	protected final long rtt;
+
+	/**
+	 * Creates a new FlushResult
+	 * @param points The number of data points flushed
+	 * @param bytes The number of bytes sent
+	 * @param success The number of data points the server stored, -1 if not reported
+	 * @param failed The number of data points the server failed to store, -1 if not reported
+	 * @param elapsed The server side elapsed time in nanos, -1 if not reported
+	 * @param rtt The client observed round trip time in nanos, -1 if no response was expected
+	 */
+	public FlushResult(final long points, final long bytes, final long success, final long failed, final long elapsed, final long rtt) {
+		this.points = points;
+		this.bytes = bytes;
+		this.success = success;
+		this.failed = failed;
+		this.elapsed = elapsed;
+		this.rtt = rtt;
+	}
+
+	/**
+	 * Returns the number of data points flushed
+	 * @return the number of data points
+	 */
+	public long getPoints() {
+		return points;
+	}
+
+	/**
+	 * Returns the number of bytes sent
+	 * @return the number of bytes
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Returns the number of data points the server stored
+	 * @return the number of stored data points or -1 if not reported
+	 */
+	public long getSuccess() {
+		return success;
+	}
+
+	/**
+	 * Returns the number of data points the server failed to store
+	 * @return the number of failed data points or -1 if not reported
+	 */
+	public long getFailed() {
+		return failed;
+	}
+
+	/**
+	 * Returns the server side elapsed time
+	 * @return the elapsed time in nanos or -1 if not reported
+	 */
+	public long getElapsed() {
+		return elapsed;
+	}
+
+	/**
+	 * Returns the client observed round trip time
+	 * @return the round trip time in nanos or -1 if no response was expected
+	 */
+	public long getRtt() {
+		return rtt;
+	}
+
+	@Override
+	public String toString() {
+		return "FlushResult [points=" + points + ", bytes=" + bytes + ", success=" + success + ", failed=" + failed
+				+ ", elapsed=" + elapsed + ", rtt=" + rtt + "]";
+	}
+}
@@ -14,6 +14,7 @@ package net.opentsdb.client.tracing;
 
 import java.nio.charset.Charset;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>Title: Tracer</p>
@@ -72,5 +73,11 @@ public interface Tracer {
      * Flushes the accumulated metrics
      */
     public void flush();
+    
+    /**
+     * Flushes the accumulated metrics without blocking
+     * @return a future completed with the flush result once the server responds
+     */
+    public CompletableFuture<FlushResult> flushAsync();
 
 }
@@ -0,0 +1,164 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.util;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import net.opentsdb.client.ClientConfiguration;
+import net.opentsdb.client.buffer.BufferManager;
+
+/**
+ * <p>Title: EventLoopRegistry</p>
+ * <p>Description: JVM wide, reference counted registry of the event loop groups shared by all clients.
+ * There is one group per transport type (epoll or NIO). The group is created by the first acquirer, sized from the
+ * <b><code>eventloop.threads</code></b> custom config element, or the system property of the same name,
+ * and is shut down when the last acquirer releases it.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.util.EventLoopRegistry</code></p>
+ */
+
+public class EventLoopRegistry {
+	/** The config key and system property for the number of event loop threads */
+	public static final String THREADS_KEY = "eventloop.threads";
+	/** The default number of event loop threads */
+	public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+	/** The registered groups keyed by transport */
+	private static final Map<Transport, SharedGroup> groups = new EnumMap<Transport, SharedGroup>(Transport.class);
+	/** Static class logger */
+	private static final Logger log = LoggerFactory.getLogger(EventLoopRegistry.class);
+
+	/**
+	 * <p>Title: Transport</p>
+	 * <p>Description: Enumerates the event loop transport types</p>
+	 */
+	public static enum Transport {
+		/** Native epoll transport */
+		EPOLL,
+		/** Java NIO transport */
+		NIO;
+	}
+
+	/**
+	 * <p>Title: SharedGroup</p>
+	 * <p>Description: A reference counted event loop group</p>
+	 */
+	private static class SharedGroup {
+		final EventLoopGroup group;
+		final int threads;
+		int refs = 0;
+		SharedGroup(final EventLoopGroup group, final int threads) {
+			this.group = group;
+			this.threads = threads;
+		}
+	}
+
+	/**
+	 * Acquires the shared event loop group for the passed client configuration
+	 * @param config The client configuration
+	 * @return the shared event loop group
+	 */
+	public static EventLoopGroup acquire(final ClientConfiguration config) {
+		if(config==null) throw new IllegalArgumentException("The passed ClientConfiguration was null");
+		return acquire(config.epoll(), config.custom(THREADS_KEY, Number.class, defaultThreads()).intValue());
+	}
+
+	/**
+	 * Acquires the shared event loop group for the passed transport
+	 * @param epoll true for the epoll transport, false for NIO
+	 * @param threads The number of threads to create the group with if it does not exist yet
+	 * @return the shared event loop group
+	 */
+	public static EventLoopGroup acquire(final boolean epoll, final int threads) {
+		final Transport transport = epoll ? Transport.EPOLL : Transport.NIO;
+		synchronized(groups) {
+			SharedGroup sg = groups.get(transport);
+			if(sg==null) {
+				final int size = threads < 1 ? defaultThreads() : threads;
+				final DefaultThreadFactory threadFactory = new DefaultThreadFactory("OpenTSDBClient" + (epoll ? "Epoll" : "Nio"));
+				sg = new SharedGroup(epoll ? new EpollEventLoopGroup(size, threadFactory) : new NioEventLoopGroup(size, threadFactory), size);
+				groups.put(transport, sg);
+				log.info("Created shared [{}] event loop group with [{}] threads", transport, size);
+			} else if(threads > 0 && threads != sg.threads) {
+				log.debug("Requested [{}] threads but sharing existing [{}] event loop group with [{}] threads", threads, transport, sg.threads);
+			}
+			sg.refs++;
+			return sg.group;
+		}
+	}
+
+	/**
+	 * Acquires the shared event loop group for the passed transport using the default size
+	 * @param epoll true for the epoll transport, false for NIO
+	 * @return the shared event loop group
+	 */
+	public static EventLoopGroup acquire(final boolean epoll) {
+		return acquire(epoll, -1);
+	}
+
+	/**
+	 * Releases a reference to the passed group, shutting it down if it was the last reference
+	 * @param group The group to release
+	 */
+	public static void release(final EventLoopGroup group) {
+		if(group==null) return;
+		synchronized(groups) {
+			for(Map.Entry<Transport, SharedGroup> entry: groups.entrySet()) {
+				final SharedGroup sg = entry.getValue();
+				if(sg.group==group) {
+					sg.refs--;
+					if(sg.refs < 1) {
+						groups.remove(entry.getKey());
+						group.shutdownGracefully();
+						log.info("Shut down shared [{}] event loop group", entry.getKey());
+					}
+					return;
+				}
+			}
+		}
+		log.warn("Released event loop group was not registered. Shutting it down.");
+		group.shutdownGracefully();
+	}
+
+	/**
+	 * Returns the number of references to the passed transport's group
+	 * @param transport The transport type
+	 * @return the reference count or zero if the group does not exist
+	 */
+	public static int references(final Transport transport) {
+		synchronized(groups) {
+			final SharedGroup sg = groups.get(transport);
+			return sg==null ? 0 : sg.refs;
+		}
+	}
+
+	/**
+	 * Returns the default number of threads
+	 * @return the default number of threads
+	 */
+	private static int defaultThreads() {
+		return BufferManager.getInt(THREADS_KEY, DEFAULT_THREADS);
+	}
+
+	private EventLoopRegistry() {}
+
+}
@@ -24,6 +24,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.nio.Buffer;
@@ -47,15 +48,33 @@ public class NIOHelper {
 	private static final Method getCleanerMethod;
 	/** The clean method in cleaner */
 	private static final Method cleanMethod;
+	/** The Java 9+ <code>sun.misc.Unsafe</code> instance, null on Java 8 */
+	private static final Object unsafe;
+	/** The Java 9+ <code>sun.misc.Unsafe.invokeCleaner(ByteBuffer)</code> method, null on Java 8 */
+	private static final Method invokeCleanerMethod;
 	
 	private static final boolean IS_WIN = System.getProperty("os.name").toLowerCase().contains("windows");
 	
 	static {
+		Object u = null;
+		Method ic = null;
+		try {
+			final Class<?> unsafeClazz = Class.forName("sun.misc.Unsafe");
+			ic = unsafeClazz.getMethod("invokeCleaner", ByteBuffer.class);
+			final Field f = unsafeClazz.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			u = f.get(null);
+		} catch (Throwable x) {
+			u = null;
+			ic = null;
+		}
+		unsafe = u;
+		invokeCleanerMethod = ic;
 		Class<?> clazz = null;
 		Class<?> cleanerClazz = null;
 		Method m = null;
 		Method cm = null;
-		try {
+		if(invokeCleanerMethod==null) try {
 			clazz = Class.forName("java.nio.DirectByteBuffer", true, ClassLoader.getSystemClassLoader());
 			m = clazz.getDeclaredMethod("cleaner");
 			m.setAccessible(true);
@@ -77,7 +96,8 @@ public class NIOHelper {
 	
 	
 	/**
-	 * Manual deallocation of the memory allocated for direct byte buffers.
+	 * Manual deallocation of the memory allocated for direct byte buffers, 
+	 * through <code>Unsafe.invokeCleaner</code> on Java 9+ and the buffer's cleaner on Java 8.
 	 * Does nothing if the cleaner class and methods were not reflected successfully,
 	 * the passed buffer is null or not a DirectByteBuffer, 
 	 * or if the clean invocation fails.
@@ -87,13 +107,22 @@ public class NIOHelper {
 		if(buffs!=null) {
 			for(Buffer buff: buffs) {
 				if(buff==null) continue;
+				if(invokeCleanerMethod!=null && buff.isDirect()) {
+					try {
+						invokeCleanerMethod.invoke(unsafe, buff);
+						continue;
+					} catch (Throwable t) {
+						t.printStackTrace(System.err);
+						/* No Op */
+					}
+				}
 				if(directByteBuffClass!=null && directByteBuffClass.isInstance(buff)) {
 					try {
 						Object cleaner = getCleanerMethod.invoke(buff);
 						if(cleaner!=null) {
 							cleanMethod.invoke(cleaner);					
 						}
-						return;
+						continue;
 					} catch (Throwable t) {
 						t.printStackTrace(System.err);
 						/* No Op */
@@ -147,6 +176,31 @@ public class NIOHelper {
 		}
 	}
 	
+	/**
+	 * Maps the passed file read/write, creating it and extending it to the passed size if required.
+	 * The file channel is closed before returning, the mapping remains valid until the buffer is cleaned.
+	 * @param file The file to map
+	 * @param size The size of the mapping in bytes
+	 * @return the mapped byte buffer
+	 */
+	public static MappedByteBuffer map(final File file, final int size) {
+		if(file==null) throw new IllegalArgumentException("The passed file is null");
+		if(size < 1) throw new IllegalArgumentException("Invalid mapping size: " + size);
+		RandomAccessFile raf = null;
+		FileChannel fc = null;
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			if(raf.length() < size) raf.setLength(size);
+			fc = raf.getChannel();
+			return fc.map(MapMode.READ_WRITE, 0, size);
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed to map file [" + file + "]", ex);
+		} finally {
+			if(fc!=null) try { fc.close(); } catch (Exception x) {/* No Op */}
+			if(raf!=null) try { raf.close(); } catch (Exception x) {/* No Op */}
+		}
+	}
+
 	/**
 	 * Loads the content from the passed URL into a direct byte buffer and returns it.
 	 * @param url The url to load from
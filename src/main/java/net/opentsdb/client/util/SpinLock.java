@@ -44,7 +44,7 @@ public class SpinLock {
 	public boolean lock(final boolean barge) {
 		final long id = Thread.currentThread().getId();
 		if(lock.get()!=id) {
-			while(lock.compareAndSet(UNLOCKED, id)) {
+			while(!lock.compareAndSet(UNLOCKED, id)) {
 				if(!barge) Thread.yield();
 			}
 			return false;
@@ -0,0 +1,162 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.client.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * <p>Title: ClientEvents</p>
+ * <p>Description: The facade the client emits its flight recorder events through. This is the Java 11 version,
+ * packaged in the multi-release jar, which records <code>jdk.jfr</code> events. An event that is not enabled in
+ * any running recording is not allocated, so the cost with the flight recorder off is one enabled check.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>net.opentsdb.client.jfr.ClientEvents</code></p>
+ */
+
+public final class ClientEvents {
+	/** Prototypes used to check if each event type is enabled */
+	private static final ClientEvent[] PROTOTYPES = new ClientEvent[ClientEventType.values().length];
+
+	static {
+		for(ClientEventType type: ClientEventType.values()) {
+			PROTOTYPES[type.ordinal()] = create(type);
+		}
+	}
+
+	private ClientEvents() {}
+
+	/**
+	 * Indicates if flight recorder events are supported on this JVM
+	 * @return true
+	 */
+	public static boolean isAvailable() {
+		return true;
+	}
+
+	/**
+	 * Starts a timed event
+	 * @param type The event type
+	 * @return the started event, or null if the event is not being recorded
+	 */
+	public static Object begin(final ClientEventType type) {
+		if(!PROTOTYPES[type.ordinal()].isEnabled()) return null;
+		final ClientEvent event = create(type);
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Ends and records a timed event started with {@link #begin(ClientEventType)}
+	 * @param event The started event, ignored if null
+	 * @param clientType The client type
+	 * @param bytes The number of bytes
+	 * @param points The number of data points
+	 */
+	public static void commit(final Object event, final String clientType, final long bytes, final long points) {
+		if(event==null) return;
+		final ClientEvent e = (ClientEvent)event;
+		e.end();
+		if(e.shouldCommit()) {
+			e.clientType = clientType;
+			e.bytes = bytes;
+			e.points = points;
+			e.commit();
+		}
+	}
+
+	/**
+	 * Records an instant event
+	 * @param type The event type
+	 * @param clientType The client type
+	 * @param bytes The number of bytes
+	 * @param points The number of data points
+	 */
+	public static void emit(final ClientEventType type, final String clientType, final long bytes, final long points) {
+		if(!PROTOTYPES[type.ordinal()].isEnabled()) return;
+		final ClientEvent e = create(type);
+		if(e.shouldCommit()) {
+			e.clientType = clientType;
+			e.bytes = bytes;
+			e.points = points;
+			e.commit();
+		}
+	}
+
+	private static ClientEvent create(final ClientEventType type) {
+		switch(type) {
+			case SWAP: return new SwapEvent();
+			case FLUSH: return new FlushEvent();
+			case SEND: return new SendEvent();
+			case ACK: return new AckEvent();
+			case SEAL: return new SealEvent();
+			case DROP: return new DropEvent();
+			case RETRY: return new RetryEvent();
+			default: throw new IllegalArgumentException("Unknown event type: " + type);
+		}
+	}
+
+	/**
+	 * <p>Title: ClientEvent</p>
+	 * <p>Description: The base of the client's events</p>
+	 */
+	@Category({"OpenTSDB", "Client"})
+	@StackTrace(false)
+	static abstract class ClientEvent extends Event {
+		@Label("Client Type")
+		@Description("The client's protocol, channel, codec and buffer type")
+		String clientType;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Data Points")
+		long points;
+	}
+
+	@Name("net.opentsdb.client.Swap")
+	@Label("Trace Buffer Swap")
+	static class SwapEvent extends ClientEvent {}
+
+	@Name("net.opentsdb.client.Flush")
+	@Label("Flush")
+	static class FlushEvent extends ClientEvent {}
+
+	@Name("net.opentsdb.client.Send")
+	@Label("Batch Send")
+	static class SendEvent extends ClientEvent {}
+
+	@Name("net.opentsdb.client.Ack")
+	@Label("Batch Acknowledgement")
+	@Description("From sending a flushed batch to the server's acknowledgement")
+	static class AckEvent extends ClientEvent {}
+
+	@Name("net.opentsdb.client.Seal")
+	@Label("UDP Packet Seal")
+	static class SealEvent extends ClientEvent {}
+
+	@Name("net.opentsdb.client.Drop")
+	@Label("Dropped Data")
+	static class DropEvent extends ClientEvent {}
+
+	@Name("net.opentsdb.client.Retry")
+	@Label("Retried Data")
+	static class RetryEvent extends ClientEvent {}
+}